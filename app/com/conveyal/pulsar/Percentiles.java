@@ -0,0 +1,124 @@
+package com.conveyal.pulsar;
+
+/**
+ * Exact percentiles of primitive int arrays, computed by in-place selection rather than by sorting.
+ * The arrays passed in are reordered.
+ */
+public final class Percentiles {
+    private Percentiles () {
+        // static utility class
+    }
+
+    /** Get the minimum value in an array */
+    public static int min (int[] values) {
+        int min = Integer.MAX_VALUE;
+        for (int v : values) {
+            if (v < min)
+                min = v;
+        }
+        return min;
+    }
+
+    /** Get the maximum value in an array */
+    public static int max (int[] values) {
+        int max = Integer.MIN_VALUE;
+        for (int v : values) {
+            if (v > max)
+                max = v;
+        }
+        return max;
+    }
+
+    /**
+     * Get a given percentile of the first n values, interpolating between the values on either side of the offset
+     * as TransferExtractor always has. Partially reorders the array.
+     */
+    public static int percentile (int percent, int[] values, int n) {
+        if (n == 0)
+            // by construction
+            return Integer.MAX_VALUE;
+
+        if (n == 1)
+            return values[0];
+
+        double offset = (((double) percent) / 100d) * ((double) n - 1);
+
+        int belowIdx = (int) Math.floor(offset);
+        int below = select(values, belowIdx, 0, n);
+
+        double aboveProportion = offset % 1;
+
+        if (aboveProportion == 0)
+            return below;
+
+        // after selection everything past belowIdx is at least as large, so the next value is the smallest of those
+        int above = Integer.MAX_VALUE;
+        for (int i = belowIdx + 1; i < n; i++) {
+            if (values[i] < above)
+                above = values[i];
+        }
+
+        return (int) Math.round(aboveProportion * above + (1 - aboveProportion) * below);
+    }
+
+    /** Get a given percentile of an array; see {@link #percentile(int, int[], int)} */
+    public static int percentile (int percent, int[] values) {
+        return percentile(percent, values, values.length);
+    }
+
+    /**
+     * Find the k-th smallest value in values[from, to), leaving it at index k with smaller values before it and
+     * larger values after it (Hoare's quickselect). Expected linear time.
+     */
+    public static int select (int[] values, int k, int from, int to) {
+        int lo = from;
+        int hi = to - 1;
+
+        while (lo < hi) {
+            // median of three pivot, so that already-sorted input (common, as times come out of sorted lists) is not quadratic
+            int mid = (lo + hi) >>> 1;
+            int pivot = medianOfThree(values[lo], values[mid], values[hi]);
+
+            int i = lo;
+            int j = hi;
+
+            while (i <= j) {
+                while (values[i] < pivot)
+                    i++;
+                while (values[j] > pivot)
+                    j--;
+
+                if (i <= j) {
+                    int tmp = values[i];
+                    values[i] = values[j];
+                    values[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+
+            // now values[lo..j] <= pivot <= values[i..hi], and anything between j and i equals the pivot
+            if (k <= j)
+                hi = j;
+            else if (k >= i)
+                lo = i;
+            else
+                return values[k];
+        }
+
+        return values[k];
+    }
+
+    private static int medianOfThree (int a, int b, int c) {
+        if (a < b) {
+            if (b < c)
+                return b;
+            return a < c ? c : a;
+        }
+        else {
+            if (a < c)
+                return a;
+            return b < c ? c : b;
+        }
+    }
+}
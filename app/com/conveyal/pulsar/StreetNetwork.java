@@ -0,0 +1,461 @@
+package com.conveyal.pulsar;
+
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.TIntSet;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * A walkable street network read from an OpenStreetMap XML extract, stored compactly as arrays, for computing walk
+ * distances between nearby stops.
+ */
+public class StreetNetwork {
+    private static final Logger LOG = Logger.getLogger(StreetNetwork.class.getName());
+
+    /** highway types that pedestrians can't use */
+    private static final Set<String> NOT_WALKABLE = new HashSet<String>(Arrays.asList(
+            "motorway", "motorway_link", "construction", "proposed", "raceway", "bus_guideway", "abandoned"));
+
+    private double[] lat;
+    private double[] lon;
+
+    /** the edges leaving node i are edgeTarget[edgeOffset[i]] until edgeTarget[edgeOffset[i + 1]] */
+    private int[] edgeOffset;
+    private int[] edgeTarget;
+
+    /** edge lengths, meters */
+    private double[] edgeLength;
+
+    /** the street segments, each once regardless of direction, as the nodes at either end and the length in meters */
+    private int[] segmentA;
+    private int[] segmentB;
+    private double[] segmentLength;
+
+    private STRtree segmentIndex;
+
+    private StreetNetwork () {
+        // use fromOsm
+    }
+
+    /**
+     * Read the walkable ways from an OSM XML file (optionally gzipped). The file is read twice, once to find the walkable
+     * ways and once to find the coordinates of their nodes, so that we never hold all of the nodes in the extract.
+     */
+    public static StreetNetwork fromOsm (File osm) throws IOException, XMLStreamException {
+        StreetNetwork net = new StreetNetwork();
+
+        // the node IDs of the walkable ways, one after another, and the index of the start of each way
+        TLongList wayNodes = new TLongArrayList();
+        TIntList wayStart = new TIntArrayList();
+
+        LOG.info("Reading ways");
+        InputStream is = open(osm);
+        XMLStreamReader xml = XMLInputFactory.newInstance().createXMLStreamReader(is);
+        try {
+            TLongList nodes = new TLongArrayList();
+            Map<String, String> tags = new HashMap<String, String>();
+            boolean inWay = false;
+
+            while (xml.hasNext()) {
+                int event = xml.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = xml.getLocalName();
+
+                    if ("way".equals(name)) {
+                        inWay = true;
+                        nodes.clear();
+                        tags.clear();
+                    }
+                    else if (inWay && "nd".equals(name)) {
+                        nodes.add(Long.parseLong(xml.getAttributeValue(null, "ref")));
+                    }
+                    else if (inWay && "tag".equals(name)) {
+                        tags.put(xml.getAttributeValue(null, "k"), xml.getAttributeValue(null, "v"));
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT && "way".equals(xml.getLocalName())) {
+                    inWay = false;
+
+                    if (nodes.size() >= 2 && isWalkable(tags)) {
+                        wayStart.add(wayNodes.size());
+                        wayNodes.addAll(nodes);
+                    }
+                }
+            }
+        } finally {
+            xml.close();
+            is.close();
+        }
+
+        wayStart.add(wayNodes.size());
+
+        // number the nodes used by walkable ways
+        TLongIntMap nodeIndices = new TLongIntHashMap(wayNodes.size(), 0.75f, -1, -1);
+        for (int i = 0; i < wayNodes.size(); i++) {
+            long id = wayNodes.get(i);
+            if (!nodeIndices.containsKey(id))
+                nodeIndices.put(id, nodeIndices.size());
+        }
+
+        net.lat = new double[nodeIndices.size()];
+        net.lon = new double[nodeIndices.size()];
+
+        // nodes that are not in the extract (e.g. ways clipped at its edge) will be left as NaN
+        Arrays.fill(net.lat, Double.NaN);
+        Arrays.fill(net.lon, Double.NaN);
+
+        LOG.info("Reading coordinates of " + nodeIndices.size() + " nodes");
+        is = open(osm);
+        xml = XMLInputFactory.newInstance().createXMLStreamReader(is);
+        try {
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT && "node".equals(xml.getLocalName())) {
+                    int idx = nodeIndices.get(Long.parseLong(xml.getAttributeValue(null, "id")));
+
+                    if (idx != -1) {
+                        net.lat[idx] = Double.parseDouble(xml.getAttributeValue(null, "lat"));
+                        net.lon[idx] = Double.parseDouble(xml.getAttributeValue(null, "lon"));
+                    }
+                }
+            }
+        } finally {
+            xml.close();
+            is.close();
+        }
+
+        // build the edges, in both directions as pedestrians can walk either way on a one-way street
+        TIntList from = new TIntArrayList();
+        TIntList to = new TIntArrayList();
+        TDoubleList length = new TDoubleArrayList();
+
+        for (int w = 0; w < wayStart.size() - 1; w++) {
+            for (int i = wayStart.get(w); i < wayStart.get(w + 1) - 1; i++) {
+                int a = nodeIndices.get(wayNodes.get(i));
+                int b = nodeIndices.get(wayNodes.get(i + 1));
+
+                if (Double.isNaN(net.lat[a]) || Double.isNaN(net.lat[b]))
+                    continue;
+
+                double d = TransferExtractor.getDistance(net.lat[a], net.lon[a], net.lat[b], net.lon[b]);
+
+                from.add(a); to.add(b); length.add(d);
+                from.add(b); to.add(a); length.add(d);
+            }
+        }
+
+        net.buildEdgeArrays(from, to, length);
+        net.indexSegments(from, to, length);
+
+        LOG.info("Street network has " + net.lat.length + " nodes and " + net.edgeTarget.length + " edges");
+
+        return net;
+    }
+
+    private static InputStream open (File osm) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(osm));
+
+        if (osm.getName().endsWith(".gz"))
+            is = new GZIPInputStream(is);
+
+        return is;
+    }
+
+    /** can pedestrians use a way with these tags? */
+    private static boolean isWalkable (Map<String, String> tags) {
+        String highway = tags.get("highway");
+
+        if (highway == null || NOT_WALKABLE.contains(highway))
+            return false;
+
+        String foot = tags.get("foot");
+
+        if ("no".equals(foot))
+            return false;
+
+        String access = tags.get("access");
+
+        if (("no".equals(access) || "private".equals(access)) &&
+                !("yes".equals(foot) || "designated".equals(foot) || "permissive".equals(foot)))
+            return false;
+
+        return true;
+    }
+
+    /** sort the edges by origin node into compressed arrays */
+    private void buildEdgeArrays (TIntList from, TIntList to, TDoubleList length) {
+        int nNodes = lat.length;
+        int nEdges = from.size();
+
+        edgeOffset = new int[nNodes + 1];
+        for (int e = 0; e < nEdges; e++) {
+            edgeOffset[from.get(e) + 1]++;
+        }
+
+        for (int i = 0; i < nNodes; i++) {
+            edgeOffset[i + 1] += edgeOffset[i];
+        }
+
+        edgeTarget = new int[nEdges];
+        edgeLength = new double[nEdges];
+        int[] next = Arrays.copyOf(edgeOffset, nNodes);
+
+        for (int e = 0; e < nEdges; e++) {
+            int pos = next[from.get(e)]++;
+            edgeTarget[pos] = to.get(e);
+            edgeLength[pos] = length.get(e);
+        }
+    }
+
+    /** index the street segments, which are every other edge as edges were added in pairs, one in each direction */
+    private void indexSegments (TIntList from, TIntList to, TDoubleList length) {
+        int nSegments = from.size() / 2;
+
+        segmentA = new int[nSegments];
+        segmentB = new int[nSegments];
+        segmentLength = new double[nSegments];
+        segmentIndex = new STRtree();
+
+        for (int s = 0; s < nSegments; s++) {
+            segmentA[s] = from.get(s * 2);
+            segmentB[s] = to.get(s * 2);
+            segmentLength[s] = length.get(s * 2);
+
+            Envelope env = new Envelope(lon[segmentA[s]], lon[segmentB[s]], lat[segmentA[s]], lat[segmentB[s]]);
+            segmentIndex.insert(env, s);
+        }
+    }
+
+    /**
+     * Snap a point to the nearest point on a street segment within maxDistance meters, or return null if there is none.
+     * Snapping to segments rather than nodes means points in the middle of long blocks can still be snapped, and are
+     * snapped to the street they are actually next to.
+     */
+    public Snap snap (double lat, double lon, double maxDistance) {
+        // see TransferExtractor.stopsNear for the derivation
+        double thresholdDegLat = maxDistance * 90 / 10000000;
+        double thresholdDegLon = maxDistance * 360 / (6378000 * Math.cos(Math.toRadians(lat)) * Math.PI * 2);
+
+        Envelope env = new Envelope(new Coordinate(lon, lat));
+        env.expandBy(thresholdDegLon, thresholdDegLat);
+
+        // project into a local plane, in which distances in degrees of longitude are scaled to match degrees of latitude
+        double cosLat = Math.cos(Math.toRadians(lat));
+
+        Snap best = null;
+
+        @SuppressWarnings("unchecked")
+        List<Integer> candidates = segmentIndex.query(env);
+
+        for (int s : candidates) {
+            int a = segmentA[s];
+            int b = segmentB[s];
+
+            double ax = (this.lon[a] - lon) * cosLat, ay = this.lat[a] - lat;
+            double bx = (this.lon[b] - lon) * cosLat, by = this.lat[b] - lat;
+            double dx = bx - ax, dy = by - ay;
+
+            // the position of the closest point along the segment, from 0 at a to 1 at b
+            double len2 = dx * dx + dy * dy;
+            double frac = len2 == 0 ? 0 : Math.max(0, Math.min(1, -(ax * dx + ay * dy) / len2));
+
+            double snapLat = this.lat[a] + frac * (this.lat[b] - this.lat[a]);
+            double snapLon = this.lon[a] + frac * (this.lon[b] - this.lon[a]);
+            double d = TransferExtractor.getDistance(lat, lon, snapLat, snapLon);
+
+            if (d <= maxDistance && (best == null || d < best.accessDistance))
+                best = new Snap(a, b, frac * segmentLength[s], (1 - frac) * segmentLength[s], d);
+        }
+
+        return best;
+    }
+
+    /**
+     * Find the network distances from a snapped point to the given target nodes, searching no further than maxDistance
+     * meters. Targets that cannot be reached within maxDistance are not added to the result.
+     */
+    public void distances (Snap origin, TIntSet targets, double maxDistance, TIntDoubleMap result) {
+        // Dijkstra's algorithm, with lazy deletion from the queue, starting from both ends of the origin's segment
+        TIntDoubleMap best = new TIntDoubleHashMap(64, 0.5f, -1, Double.POSITIVE_INFINITY);
+        NodeQueue queue = new NodeQueue();
+
+        best.put(origin.a, origin.toA);
+        queue.add(origin.a, origin.toA);
+
+        if (origin.toB < best.get(origin.b)) {
+            best.put(origin.b, origin.toB);
+            queue.add(origin.b, origin.toB);
+        }
+
+        int remaining = targets.size();
+
+        while (!queue.isEmpty() && remaining > 0) {
+            double d = queue.peekDistance();
+            int node = queue.poll();
+
+            if (d > best.get(node))
+                // already settled at a lower distance
+                continue;
+
+            if (targets.contains(node) && !result.containsKey(node)) {
+                result.put(node, d);
+                remaining--;
+            }
+
+            for (int e = edgeOffset[node]; e < edgeOffset[node + 1]; e++) {
+                double nd = d + edgeLength[e];
+
+                if (nd > maxDistance)
+                    continue;
+
+                if (nd < best.get(edgeTarget[e])) {
+                    best.put(edgeTarget[e], nd);
+                    queue.add(edgeTarget[e], nd);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the network distance between two snapped points, given the distances from the origin to the nodes at the ends
+     * of the destination's segment found by distances(...), or positive infinity if the destination was not reached. This
+     * does not include the access distances to and from the street network.
+     */
+    public static double distance (Snap origin, Snap destination, TIntDoubleMap networkDistances) {
+        double distance = Double.POSITIVE_INFINITY;
+
+        // both points are on the same segment, so we can walk straight along it
+        if (origin.a == destination.a && origin.b == destination.b)
+            distance = Math.abs(origin.toA - destination.toA);
+        else if (origin.a == destination.b && origin.b == destination.a)
+            distance = Math.abs(origin.toA - destination.toB);
+
+        if (networkDistances.containsKey(destination.a))
+            distance = Math.min(distance, networkDistances.get(destination.a) + destination.toA);
+
+        if (networkDistances.containsKey(destination.b))
+            distance = Math.min(distance, networkDistances.get(destination.b) + destination.toB);
+
+        return distance;
+    }
+
+    /** A point snapped to the street network, somewhere along a segment */
+    public static class Snap {
+        /** the nodes at either end of the segment */
+        public final int a, b;
+
+        /** the distances along the segment to a and to b, meters */
+        public final double toA, toB;
+
+        /** the distance from the point to the street network, meters as the crow flies */
+        public final double accessDistance;
+
+        public Snap (int a, int b, double toA, double toB, double accessDistance) {
+            this.a = a;
+            this.b = b;
+            this.toA = toA;
+            this.toB = toB;
+            this.accessDistance = accessDistance;
+        }
+    }
+
+    /** binary min-heap of nodes keyed on distance */
+    private static class NodeQueue {
+        private int[] nodes = new int[64];
+        private double[] dists = new double[64];
+        private int size = 0;
+
+        public boolean isEmpty () {
+            return size == 0;
+        }
+
+        public void add (int node, double dist) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                dists = Arrays.copyOf(dists, size * 2);
+            }
+
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+
+                if (dists[parent] <= dist)
+                    break;
+
+                nodes[i] = nodes[parent];
+                dists[i] = dists[parent];
+                i = parent;
+            }
+
+            nodes[i] = node;
+            dists[i] = dist;
+        }
+
+        public double peekDistance () {
+            return dists[0];
+        }
+
+        public int poll () {
+            int ret = nodes[0];
+            size--;
+
+            int node = nodes[size];
+            double dist = dists[size];
+
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+
+                if (child >= size)
+                    break;
+
+                if (child + 1 < size && dists[child + 1] < dists[child])
+                    child++;
+
+                if (dists[child] >= dist)
+                    break;
+
+                nodes[i] = nodes[child];
+                dists[i] = dists[child];
+                i = child;
+            }
+
+            if (size > 0) {
+                nodes[i] = node;
+                dists[i] = dist;
+            }
+
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.conveyal.pulsar;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.conveyal.pulsar.TransferExtractor.Transfer;
+
+/**
+ * Summaries of transfer times over time of day for all of the transfers from a route direction, at several resolutions.
+ * The visualization fetches only the resolution it needs, so the size of the data sent to the client depends on the
+ * resolution rather than the frequency of service.
+ */
+public class TimeOfDayPyramid {
+    /** The resolutions at which we summarize transfer times, seconds, coarsest first */
+    public static final int[] RESOLUTIONS = new int[] { 60 * 60, 15 * 60, 5 * 60 };
+
+    /** the transfers summarized */
+    public final Transfer[] transfers;
+
+    /** summaries of each transfer, indexed by resolution and then transfer */
+    private final Bucket[][][] levels;
+
+    /**
+     * Build a pyramid from the transfers from a route direction.
+     */
+    public TimeOfDayPyramid(TransferExtractor extractor, Transfer[] transfers) {
+        this.transfers = transfers;
+        this.levels = new Bucket[RESOLUTIONS.length][transfers.length][];
+
+        for (int tidx = 0; tidx < transfers.length; tidx++) {
+            int[][] times = extractor.transferLengthsAndTimesOfDay(transfers[tidx]);
+            int[] lengths = times[0];
+            int[] timesOfDay = times[1];
+
+            // scratch space for percentile selection, which reorders its input
+            int[] scratch = new int[lengths.length];
+
+            for (int ridx = 0; ridx < RESOLUTIONS.length; ridx++) {
+                levels[ridx][tidx] = summarize(lengths, timesOfDay, RESOLUTIONS[ridx], scratch);
+            }
+        }
+    }
+
+    /**
+     * Summarize transfer lengths in buckets of the given width.
+     * Transfer times come out of the extractor in order of time of day, so each bucket is a contiguous range.
+     */
+    static Bucket[] summarize (int[] lengths, int[] timesOfDay, int resolution, int[] scratch) {
+        List<Bucket> buckets = new ArrayList<Bucket>();
+
+        int start = 0;
+        while (start < lengths.length) {
+            int bucketStart = timesOfDay[start] / resolution * resolution;
+            int end = start;
+
+            while (end < lengths.length && timesOfDay[end] < bucketStart + resolution)
+                end++;
+
+            int n = end - start;
+            System.arraycopy(lengths, start, scratch, 0, n);
+
+            Bucket b = new Bucket();
+            b.start = bucketStart;
+            b.n = n;
+
+            b.min = Integer.MAX_VALUE;
+            b.max = Integer.MIN_VALUE;
+            for (int i = 0; i < n; i++) {
+                b.min = Math.min(b.min, scratch[i]);
+                b.max = Math.max(b.max, scratch[i]);
+            }
+
+            b.pct25 = Percentiles.percentile(25, scratch, n);
+            b.median = Percentiles.percentile(50, scratch, n);
+            b.pct75 = Percentiles.percentile(75, scratch, n);
+
+            buckets.add(b);
+            start = end;
+        }
+
+        return buckets.toArray(new Bucket[buckets.size()]);
+    }
+
+    /** Is this one of the resolutions in the pyramid? */
+    public static boolean hasResolution (int resolution) {
+        return resolutionIndex(resolution) >= 0;
+    }
+
+    private static int resolutionIndex (int resolution) {
+        for (int i = 0; i < RESOLUTIONS.length; i++) {
+            if (RESOLUTIONS[i] == resolution)
+                return i;
+        }
+
+        return -1;
+    }
+
+    /** Get the summaries of every transfer at the given resolution, in seconds, skipping transfers that never occur */
+    public List<TransferSummary> getLevel (int resolution) {
+        int ridx = resolutionIndex(resolution);
+
+        if (ridx < 0)
+            throw new IllegalArgumentException("No such resolution " + resolution);
+
+        List<TransferSummary> ret = new ArrayList<TransferSummary>();
+
+        for (int tidx = 0; tidx < transfers.length; tidx++) {
+            if (levels[ridx][tidx].length > 0)
+                ret.add(new TransferSummary(transfers[tidx], resolution, levels[ridx][tidx]));
+        }
+
+        return ret;
+    }
+
+    /** A transfer and the summaries of its transfer times at a single resolution */
+    public static class TransferSummary {
+        public Transfer transfer;
+
+        /** width of each bucket, seconds */
+        public int resolution;
+
+        /** buckets, in order of time of day. Buckets with no transfers are omitted. */
+        public Bucket[] buckets;
+
+        public TransferSummary (Transfer transfer, int resolution, Bucket[] buckets) {
+            this.transfer = transfer;
+            this.resolution = resolution;
+            this.buckets = buckets;
+        }
+    }
+
+    /** Summary of the transfer times beginning in a period of time */
+    public static class Bucket {
+        /** start of this bucket, seconds since midnight */
+        public int start;
+
+        /** number of transfers */
+        public int n;
+
+        /** minimum transfer time, seconds */
+        public int min;
+
+        /** 25th percentile transfer time, seconds */
+        public int pct25;
+
+        /** median transfer time, seconds */
+        public int median;
+
+        /** 75th percentile transfer time, seconds */
+        public int pct75;
+
+        /** maximum transfer time, seconds */
+        public int max;
+    }
+}
@@ -0,0 +1,160 @@
+package com.conveyal.pulsar;
+
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * The times at which vehicles arrive at or depart from a stop, in order. Times from trips with explicit stop times
+ * are stored individually; times from frequency-based trips are stored as compact (first, end, headway) series and
+ * generated on the fly as the sequence is iterated, so that frequency-based service does not take memory proportional
+ * to the number of trips.
+ */
+public class TimeSequence {
+    /** times from trips with explicit stop times */
+    private final TIntList explicit = new TIntArrayList();
+
+    /** times from frequency-based trips, as (first, end, headway) triples; end is exclusive */
+    private final TIntList series = new TIntArrayList();
+
+    private boolean sorted = true;
+
+    /** Add a single time */
+    public void add (int time) {
+        if (!explicit.isEmpty() && time < explicit.get(explicit.size() - 1))
+            sorted = false;
+
+        explicit.add(time);
+    }
+
+    /**
+     * Add times every headway seconds, beginning at first and ending before end.
+     */
+    public void addSeries (int first, int end, int headway) {
+        if (headway <= 0)
+            throw new IllegalArgumentException("headway must be positive");
+
+        if (first >= end)
+            return;
+
+        series.add(first);
+        series.add(end);
+        series.add(headway);
+    }
+
+    public boolean isEmpty () {
+        return explicit.isEmpty() && series.isEmpty();
+    }
+
+    /** Get an iterator over all of the times, in order. Iterators are independent of each other. */
+    public TIntIterator iterator () {
+        if (!sorted) {
+            explicit.sort();
+            sorted = true;
+        }
+
+        return new MergingIterator();
+    }
+
+    /**
+     * K-way merge of the explicit times and the frequency series, using a binary heap of the next time from each series.
+     */
+    private class MergingIterator implements TIntIterator {
+        /** next index in the explicit times */
+        private int explicitIdx = 0;
+
+        /** next time from each series, and the series it comes from, as a min-heap on time */
+        private final int[] heapTime;
+        private final int[] heapSeries;
+        private int heapSize = 0;
+
+        public MergingIterator () {
+            int nSeries = series.size() / 3;
+            heapTime = new int[nSeries];
+            heapSeries = new int[nSeries];
+
+            for (int s = 0; s < nSeries; s++) {
+                heapTime[heapSize] = series.get(s * 3);
+                heapSeries[heapSize] = s;
+                siftUp(heapSize++);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return explicitIdx < explicit.size() || heapSize > 0;
+        }
+
+        @Override
+        public int next() {
+            if (heapSize == 0 || explicitIdx < explicit.size() && explicit.get(explicitIdx) <= heapTime[0])
+                return explicit.get(explicitIdx++);
+
+            int time = heapTime[0];
+            int s = heapSeries[0];
+            int next = time + series.get(s * 3 + 2);
+
+            if (next < series.get(s * 3 + 1)) {
+                // advance this series and put it back in its place
+                heapTime[0] = next;
+            }
+            else {
+                // this series is exhausted
+                heapSize--;
+                heapTime[0] = heapTime[heapSize];
+                heapSeries[0] = heapSeries[heapSize];
+            }
+
+            siftDown(0);
+
+            return time;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void siftUp (int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+
+                if (heapTime[parent] <= heapTime[i])
+                    break;
+
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown (int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+
+                if (left < heapSize && heapTime[left] < heapTime[smallest])
+                    smallest = left;
+
+                if (right < heapSize && heapTime[right] < heapTime[smallest])
+                    smallest = right;
+
+                if (smallest == i)
+                    return;
+
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap (int i, int j) {
+            int t = heapTime[i];
+            heapTime[i] = heapTime[j];
+            heapTime[j] = t;
+
+            t = heapSeries[i];
+            heapSeries[i] = heapSeries[j];
+            heapSeries[j] = t;
+        }
+    }
+}
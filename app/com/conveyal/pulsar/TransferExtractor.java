@@ -29,10 +29,12 @@ import org.mapdb.Fun;
 import org.mapdb.Fun.Tuple2;
 
 import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Frequency;
 import com.conveyal.gtfs.model.Route;
 import com.conveyal.gtfs.model.Stop;
 import com.conveyal.gtfs.model.StopTime;
 import com.conveyal.gtfs.model.Trip;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.HashMultimap;
@@ -55,8 +57,19 @@ public class TransferExtractor {
     /** the maximum transfer time before it is considered not a transfer. 90 minutes of waiting is pretty ridiculous */
     private static final int maxTransferTime = 60 * 90;
     
-    /** how fast can we walk, in m/s? This is set slightly less than in OTP because we are using as-the-crow-flies distance */
-    private static final double walkSpeed = 1;
+    /** the default maximum transfer distance, meters as the crow flies */
+    public static final double DEFAULT_THRESHOLD = 400;
+    
+    /** width of the buckets in transfer time sketches, seconds. One minute is the resolution at which we present transfer times. */
+    private static final int sketchBucketWidth = 60;
+    
+    /**
+     * How much longer a walk over the street network is than the straight line between its ends, on average. Without
+     * a street network walk time, the walk time is the distance as the crow flies times this factor, at the street network
+     * walk speed (WalkTimeTable.WALK_SPEED). This makes it an estimate of the street network walk time, so that the two
+     * can be compared. (Together these are the same as walking as the crow flies at 1 m/s.)
+     */
+    private static final double detourFactor = 1.33;
     
     public final GTFSFeed feed;
     
@@ -68,8 +81,15 @@ public class TransferExtractor {
     /** Map from stop to route directions */
     private Multimap<Stop, RouteDirection> routesByStop;
     
+    /** Map from trip IDs to the frequencies of frequency-based trips */
+    private Multimap<String, Frequency> frequenciesByTrip;
+    
+    /** Precomputed walk times over the street network, if available */
+    private WalkTimeTable walkTimes;
+    
     /**
      * Usage: feed.zip route_id {0|1} out.csv
+     * Uses street network walk times from feed.walk if it exists.
      * @param args
      */
     public static void main (String... args) throws Exception {
@@ -77,6 +97,8 @@ public class TransferExtractor {
         LOG.info("feed loaded");
         
         TransferExtractor t = new TransferExtractor(feed);        
+        t.setWalkTimes(WalkTimeTable.forFeed(new File(args[0])));
+        
         RouteDirection rd = new RouteDirection(feed.routes.get(args[1]), Direction.fromGtfs(Integer.parseInt(args[2])));
         
         LOG.info("finding transfers");        
@@ -142,6 +164,29 @@ public class TransferExtractor {
         LOG.info("Done indexing");
     }
     
+    /**
+     * Use precomputed street network walk times for transfers, rather than walking as the crow flies.
+     */
+    public void setWalkTimes (WalkTimeTable walkTimes) {
+        this.walkTimes = walkTimes;
+    }
+    
+    /**
+     * Set the walk time for a transfer from the walk time table, if we have one and it includes these stops. Otherwise the
+     * transfer keeps its as-the-crow-flies walk time. The walk time may be WalkTimeTable.UNREACHABLE.
+     */
+    public void addWalkTimeToTransfer (Transfer t) {
+        if (walkTimes == null)
+            return;
+        
+        int walkTime = walkTimes.getWalkTime(t.fromStop, t.toStop);
+        
+        if (walkTime != WalkTimeTable.NOT_IN_TABLE) {
+            t.walkTime = walkTime;
+            t.walkTimeFromNetwork = true;
+        }
+    }
+    
     /**
      * Index stops geographically, so that we can quickly find which routes cross other routes.
      */
@@ -160,6 +205,11 @@ public class TransferExtractor {
      */
     private void indexTrips (DateTime date) {
         tripIndex = HashMultimap.create();
+        frequenciesByTrip = HashMultimap.create();
+        
+        for (Frequency f : feed.frequencies.values()) {
+            frequenciesByTrip.put(f.trip_id, f);
+        }
         
         for (Trip trip : feed.trips.values()) {
             if (!trip.service.activeOn(date))
@@ -191,6 +241,11 @@ public class TransferExtractor {
         }
     }
     
+    /** Get all of the route directions with service on the day for which this extractor was built */
+    public Set<RouteDirection> getRouteDirections () {
+        return tripIndex.keySet();
+    }
+    
     public Stop[] stopsForRouteDirecton (Route route, Direction direction) {
         return stopsForRouteDirection(new RouteDirection(route, direction));
     }
@@ -327,12 +382,17 @@ public class TransferExtractor {
         Stop[] stops = stopsForRouteDirection(dir);
         
         ArrayList<Transfer> transfers = new ArrayList<Transfer>();
-        Multimap<Stop, Transfer> transfersByStop = HashMultimap.create();
         
-        int i = 0;
-        for (Stop fromStop : stops) {
+        // the transfers we will keep: the first and last of each contiguous run of stops with transfers to the same route direction
+        Set<Transfer> transfersToKeep = new HashSet<Transfer>();
+        
+        // the current run for each route direction we can transfer to
+        Map<RouteDirection, TransferRun> runs = new HashMap<RouteDirection, TransferRun>();
+        
+        for (int sidx = 0; sidx < stops.length; sidx++) {
+            Stop fromStop = stops[sidx];
+            
             // loop over stops near this stop
-            // TODO: don't hardwire threshold to 100m
             Map<RouteDirection, Transfer> bestTransfersForThisStop = new HashMap<RouteDirection, Transfer>();
             
             for (Stop toStop : stopsNear(fromStop.stop_lat, fromStop.stop_lon, threshold)) {
@@ -347,58 +407,90 @@ public class TransferExtractor {
                         continue;
                     
                     Transfer t = new Transfer(fromStop, toStop, dir, rd);
+                    addWalkTimeToTransfer(t);
                     
-                    // find one best transfer to every other route direction
-                    if (bestTransfersForThisStop.containsKey(rd) && bestTransfersForThisStop.get(rd).distance < t.distance)
+                    // the street network does not connect these stops
+                    if (t.walkTime == WalkTimeTable.UNREACHABLE)
+                        continue;
+                    
+                    // find one best transfer to every other route direction, with the shortest walk. Walk times
+                    // as the crow flies are estimates of street network walk times, so the two can be compared.
+                    if (bestTransfersForThisStop.containsKey(rd) && bestTransfersForThisStop.get(rd).walkTime < t.walkTime)
                         continue;
                     
                     bestTransfersForThisStop.put(rd, t);
                 }
             }
             
-            // add the best transfers to the indices
+            // add the best transfers, extending the run for each route direction if it was also available at the previous stop
+            // so that when there is a common trunk, we only keep the first and last transfers
             for (Transfer t : bestTransfersForThisStop.values()) {
                 transfers.add(t);
-                transfersByStop.put(fromStop, t);
-            }
-            
-            i++;
-        }        
-        
-        // filter the transfers so that when there is a common trunk, we only have the first and last transfers
-        for (int sidx = 1; sidx < stops.length - 1; sidx++) {
-            Set<Transfer> transfersToRemove = new HashSet<Transfer>();
-            
-            // we are in a block of continuous transfers
-            if (transfersByStop.containsKey(stops[sidx]) &
-                    transfersByStop.containsKey(stops[sidx - 1]) &&
-                    transfersByStop.containsKey(stops[sidx + 1])) {
-                for (Transfer t : transfersByStop.get(stops[sidx])) {
-                    boolean previous = false;
-                    boolean next = false;
-                    
-                    for (Transfer prevt : transfersByStop.get(stops[sidx - 1])) {
-                        if (prevt.toRouteDirection.equals(t.toRouteDirection)) {
-                            previous = true;
-                            break;
-                        }
-                    }
-                    
-                    for (Transfer nextt : transfersByStop.get(stops[sidx - 1])) {
-                        if (nextt.toRouteDirection.equals(t.toRouteDirection)) {
-                            next = true;
-                            break;
-                        }
-                    }
+                
+                TransferRun run = runs.get(t.toRouteDirection);
+                
+                if (run != null && run.lastStopIndex == sidx - 1) {
+                    run.last = t;
+                    run.lastStopIndex = sidx;
+                }
+                else {
+                    // the previous run (if any) has ended
+                    if (run != null)
+                        run.keep(transfersToKeep);
                     
-                    transfersToRemove.add(t);
+                    runs.put(t.toRouteDirection, new TransferRun(t, sidx));
                 }
             }
-            
-            transfers.removeAll(transfersToRemove);
-        }        
+        }
         
-        return transfers.toArray(new Transfer[transfers.size()]);
+        // close out the runs that extend to the end of the route
+        for (TransferRun run : runs.values()) {
+            run.keep(transfersToKeep);
+        }
+        
+        // filter in a single pass, preserving stop order
+        Transfer[] ret = new Transfer[transfersToKeep.size()];
+        int i = 0;
+        for (Transfer t : transfers) {
+            if (transfersToKeep.contains(t))
+                ret[i++] = t;
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * Get the transfers from a route direction that actually occur, with their transfer times and the destinations of
+     * both route directions filled in. This is what the transfers endpoint returns.
+     * @param threshold maximum transfer distance, meters as the crow flies.
+     */
+    public List<Transfer> getTransfersWithTimes(RouteDirection dir, double threshold) {
+        Transfer[] xfers = getTransfers(dir, threshold);
+        addDestinations(dir, xfers);
+        
+        List<Transfer> ret = new ArrayList<Transfer>();
+        
+        for (Transfer xfer : xfers) {
+            xfer.transferTimes = transferTimes(xfer);
+            if (xfer.transferTimes.length > 0)
+                ret.add(xfer);
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * Fill in the destinations of the route directions of transfers from the given route direction, so they can be labeled.
+     */
+    public void addDestinations(RouteDirection dir, Transfer[] xfers) {
+        Stop[] fromStops = stopsForRouteDirection(dir);
+        String destName = fromStops[fromStops.length - 1].stop_name;
+        
+        for (Transfer xfer : xfers) {
+            Stop[] stops = stopsForRouteDirection(xfer.toRouteDirection);
+            xfer.toRouteDirection.destination = stops[stops.length - 1].stop_name;
+            xfer.fromRouteDirection.destination = destName;
+        }
     }
     
     /**
@@ -408,10 +500,50 @@ public class TransferExtractor {
      * desirable.
      */
     public TransferTime[] transferTimes(Transfer t) {
+        TIntList lengths = new TIntArrayList();
+        TIntList timesOfDay = new TIntArrayList();
+        
+        findTransferTimes(t, 0, Integer.MAX_VALUE, lengths, timesOfDay);
+        
+        TransferTime[] transferTimes = new TransferTime[lengths.size()];
+        
+        for (int i = 0; i < transferTimes.length; i++) {
+            transferTimes[i] = new TransferTime(lengths.get(i), timesOfDay.get(i));
+        }
+        
+        return transferTimes;
+    }
+    
+    /**
+     * Get the lengths of all of the transfers for the given transfer that arrive between fromTime and toTime, in seconds since midnight.
+     * This does not allocate an object per transfer, so it should be used where the time of day of each transfer is not needed. 
+     */
+    public int[] transferLengths(Transfer t, int fromTime, int toTime) {
+        TIntList lengths = new TIntArrayList();
+        findTransferTimes(t, fromTime, toTime, lengths, null);
+        return lengths.toArray();
+    }
+    
+    /**
+     * Get the lengths and times of day of all of the transfers for the given transfer, as primitive arrays in order of time of day.
+     * @return a two-element array of { lengths, timesOfDay }
+     */
+    public int[][] transferLengthsAndTimesOfDay(Transfer t) {
+        TIntList lengths = new TIntArrayList();
+        TIntList timesOfDay = new TIntArrayList();
+        findTransferTimes(t, 0, Integer.MAX_VALUE, lengths, timesOfDay);
+        return new int[][] { lengths.toArray(), timesOfDay.toArray() };
+    }
+    
+    /**
+     * Find the transfer times for a transfer, arriving between fromTime and toTime, and append their lengths and times of day to the given lists.
+     * @param timesOfDay if null, times of day are not recorded.
+     */
+    private void findTransferTimes(Transfer t, int fromTime, int toTime, TIntList lengths, TIntList timesOfDay) {
         // we can't just use an array, as not every trip stops at every stop
         // note
-        TIntList arrivalTimes = new TIntArrayList(); 
-        TIntList departureTimes = new TIntArrayList();
+        TimeSequence arrivalTimes = new TimeSequence(); 
+        TimeSequence departureTimes = new TimeSequence();
         
         for (Trip trip : tripIndex.get(t.fromRouteDirection)) {
             Iterator<StopTime> stopTimes = stopTimesForTrip(trip.trip_id).iterator();
@@ -423,40 +555,42 @@ public class TransferExtractor {
             // For instance, in DC, the northbound M4 runs from the Tenleytown Metro to Pinehurst, and sometimes
             // starts at Sibley Hospital. So it would make perfect sense to transfer to the metro from the northbound
             // M4 iff it was one of the trips that starts at Sibley Hospital rather than starting at the subway.
-            if (stopTimes.hasNext())
-                stopTimes.next();
+            if (!stopTimes.hasNext())
+                continue;
+            
+            StopTime firstStopTime = stopTimes.next();
             
             while (stopTimes.hasNext()) {
                 StopTime st = stopTimes.next();
                 if (st.stop_id.equals(t.fromStop.stop_id)) {
-                    arrivalTimes.add(st.arrival_time);
+                    addTime(arrivalTimes, trip, firstStopTime, st.arrival_time);
                 }
             }
         }
         
         for (Trip trip : tripIndex.get(t.toRouteDirection)) {
             Iterator<StopTime> stopTimes = stopTimesForTrip(trip.trip_id).iterator();
+            StopTime firstStopTime = null;
             while (stopTimes.hasNext()) {
                 StopTime st = stopTimes.next();
+                
+                if (firstStopTime == null)
+                    firstStopTime = st;
+                
                 // doesn't make sense to transfer to the last stop on a trip, so if that's the case skip this one.
                 if (st.stop_id.equals(t.toStop.stop_id) && stopTimes.hasNext()) {
-                    departureTimes.add(st.departure_time);
+                    addTime(departureTimes, trip, firstStopTime, st.departure_time);
                 }
             }
         }
         
-        arrivalTimes.sort();
-        departureTimes.sort();
-        
-        List<TransferTime> transferTimes = new ArrayList<TransferTime>();
-        
         TIntIterator arrivalsIterator = arrivalTimes.iterator();
         TIntIterator departuresIterator = departureTimes.iterator();
         
         if (!arrivalsIterator.hasNext() || !departuresIterator.hasNext())
             // no transfer
             // most likely we are either trying to transfer from the very start of a trip or the very end
-            return new TransferTime[0];
+            return;
         
         // this is outside the loop because the same departure can be the target for multiple arrivals.
         int departure = departuresIterator.next();
@@ -474,7 +608,7 @@ public class TransferExtractor {
         ARRIVALS: while (arrivalsIterator.hasNext()) {
             int arrival = arrivalsIterator.next();
             
-            int earliestPossibleDeparture = arrival + minTransferTime + (int) Math.round(t.distance / walkSpeed);
+            int earliestPossibleDeparture = arrival + minTransferTime + t.walkTime;
             
             while (departure < earliestPossibleDeparture) {
                 if (!departuresIterator.hasNext())
@@ -484,14 +618,38 @@ public class TransferExtractor {
                 departure = departuresIterator.next();
             }
             
+            if (arrival < fromTime || arrival > toTime)
+                continue;
+            
             int transferTime = departure - arrival;
             
-            if (transferTime <= maxTransferTime)
-                transferTimes.add(new TransferTime(transferTime, arrival));
+            if (transferTime <= maxTransferTime) {
+                lengths.add(transferTime);
                 
+                if (timesOfDay != null)
+                    timesOfDay.add(arrival);
+            }
         }
+    }
+    
+    /**
+     * Add the time a trip is at a stop to a sequence of times. If the trip is frequency-based, its stop times are only a template,
+     * so add a series of times for each of its frequencies instead; these are generated lazily as the sequence is iterated.
+     */
+    private void addTime(TimeSequence times, Trip trip, StopTime firstStopTime, int time) {
+        Collection<Frequency> frequencies = frequenciesByTrip.get(trip.trip_id);
+        
+        if (frequencies.isEmpty()) {
+            times.add(time);
+            return;
+        }
+        
+        // frequency-based trips start at the start time of each frequency; the template gives the time from the start of the trip
+        int offset = time - firstStopTime.departure_time;
         
-        return transferTimes.toArray(new TransferTime[transferTimes.size()]);
+        for (Frequency f : frequencies) {
+            times.addSeries(f.start_time + offset, f.end_time + offset, f.headway_secs);
+        }
     }
     
     /**
@@ -500,46 +658,37 @@ public class TransferExtractor {
      * @param toTome the end of the time window to consider, in seconds
      */
     public void addDistributionToTransfer(Transfer t, int fromTime, int toTime) {
-        TransferTime[] times = transferTimes(t);
-        
-        Arrays.sort(times, new TransferTime.LengthComparator());
+        int[] lengths = transferLengths(t, fromTime, toTime);
         
-        if (times.length == 0)
+        if (lengths.length == 0)
             return;
         
         // min and max are easy
-        t.min = times[0].lengthOfTransfer;
-        t.max = times[times.length - 1].lengthOfTransfer;
+        t.min = Percentiles.min(lengths);
+        t.max = Percentiles.max(lengths);
         
-        // get the percentiles
-        t.pct25 = getPercentile(25, times);
-        t.median = getPercentile(50, times);
-        t.pct75 = getPercentile(75, times);
+        // get the percentiles. This reorders lengths, which is fine as we are done with it.
+        t.pct25 = Percentiles.percentile(25, lengths);
+        t.median = Percentiles.percentile(50, lengths);
+        t.pct75 = Percentiles.percentile(75, lengths);
         
-        t.n = times.length;
+        t.n = lengths.length;
     }
     
-    
-    /** Get a given percentile from a sorted list of times */
-    private int getPercentile(int percent, TransferTime[] times) {
-        if (times.length == 0)
-            // by construction
-            return Integer.MAX_VALUE;
-        
-        if (times.length == 1)
-            return times[0].lengthOfTransfer;
-        
-        double offset = (((double) percent) / 100d) * ((double) times.length - 1);
-        
-        // we compute the percentile as a weighted average of the times above and below the offset
-        // if we hit a number exactly, this will still work as we'll be taking the weighted average of the same
-        // number
-        int above = times[(int) Math.ceil(offset)].lengthOfTransfer;
-        int below = times[(int) Math.floor(offset)].lengthOfTransfer;
-        
-        double aboveProportion = offset % 1;
+    /**
+     * Add the transfer times for a transfer to its sketch, creating the sketch if needed. Calling this repeatedly
+     * (e.g. for several time windows) accumulates all of the transfer times in one sketch; sketches from different
+     * feeds can be combined with {@link TransferTimeSketch#merge(TransferTimeSketch)}.
+     * @param fromTime the beginning of the time window to consider, in seconds
+     * @param toTime the end of the time window to consider, in seconds
+     */
+    public void addSketchToTransfer(Transfer t, int fromTime, int toTime) {
+        if (t.sketch == null)
+            t.sketch = new TransferTimeSketch(sketchBucketWidth, maxTransferTime);
         
-        return (int) Math.round(aboveProportion * above + (1 - aboveProportion) * below);
+        for (int length : transferLengths(t, fromTime, toTime)) {
+            t.sketch.add(length);
+        }
     }
     
     /**
@@ -586,6 +735,26 @@ public class TransferExtractor {
         }
     }
     
+    /** A contiguous run of stops along a route direction from which one can transfer to a particular other route direction */
+    private static class TransferRun {
+        public Transfer first;
+        public Transfer last;
+        
+        /** index of the last stop in this run, in the ordered stops of the route direction */
+        public int lastStopIndex;
+        
+        public TransferRun (Transfer first, int stopIndex) {
+            this.first = this.last = first;
+            this.lastStopIndex = stopIndex;
+        }
+        
+        /** mark the first and last transfers of this run to be kept */
+        public void keep (Set<Transfer> transfersToKeep) {
+            transfersToKeep.add(first);
+            transfersToKeep.add(last);
+        }
+    }
+    
     /**
      * Represents a transfer from a route direction to another route direction.
      * @author mattwigway
@@ -600,6 +769,15 @@ public class TransferExtractor {
         /** meters, as the crow flies */
         public double distance;
         
+        /**
+         * time to walk between the stops, seconds; over the street network if walk times have been precomputed, otherwise
+         * estimated from the distance as the crow flies
+         */
+        public int walkTime;
+        
+        /** is walkTime from the street network, rather than as the crow flies? */
+        public boolean walkTimeFromNetwork;
+        
         /** minimum transfer time, seconds */
         public int min;
         
@@ -621,12 +799,17 @@ public class TransferExtractor {
         /** actual transfer times */
         public TransferTime[] transferTimes; 
         
+        /** compact summary of transfer times, if one has been computed. Not sent to the client, which uses transferTimes. */
+        @JsonIgnore
+        public TransferTimeSketch sketch;
+        
         public Transfer(Stop fromStop, Stop toStop, RouteDirection fromRouteDirection, RouteDirection toRouteDirection) {
             this.fromStop = fromStop;
             this.toStop = toStop;
             this.fromRouteDirection = fromRouteDirection;
             this.toRouteDirection = toRouteDirection;
             this.distance = getDistance(fromStop.stop_lat, fromStop.stop_lon, toStop.stop_lat, toStop.stop_lon);
+            this.walkTime = (int) Math.round(distance * detourFactor / WalkTimeTable.WALK_SPEED);
             
             // make it clear that these have not been initialized.
             min = pct25 = median = pct75 = max = n = Integer.MIN_VALUE;
@@ -0,0 +1,467 @@
+package com.conveyal.pulsar;
+
+import gnu.trove.list.TByteList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.pulsar.TimeOfDayPyramid.Bucket;
+import com.conveyal.pulsar.TransferExtractor.RouteDirection;
+import com.conveyal.pulsar.TransferExtractor.Transfer;
+
+/**
+ * The transfers for an entire network, in a compact columnar binary format for offline analysis.
+ *
+ * The file is written in a streaming fashion, in row groups, so the whole table never needs to be in memory while exporting.
+ * Route and stop IDs are dictionary-encoded. All values are big-endian (the Java default, and readBin(..., endian="big") in R).
+ *
+ * <pre>
+ * magic "PLSR", int version, int resolution (seconds, or 0 for raw transfer times)
+ * int nRoutes, nRoutes strings (route IDs); int nStops, nStops strings (stop IDs). Strings are an int byte length then UTF-8.
+ * row groups, each:
+ *   int nRows (0 marks the end of the file)
+ *   int[nRows] fromRoute, byte[nRows] fromDirection, int[nRows] toRoute, byte[nRows] toDirection,
+ *   int[nRows] fromStop, int[nRows] toStop, float[nRows] distance, int[nRows] walkTime, int[nRows] count
+ *   for each of the time columns, int[sum of count]
+ * </pre>
+ *
+ * The time columns are {@link #RAW_TIME_COLUMNS} when resolution is 0, one value per transfer event, or
+ * {@link #BUCKETED_TIME_COLUMNS} otherwise, one value per time-of-day bucket with transfers.
+ */
+public class TransferTable {
+    private static final Logger LOG = Logger.getLogger(TransferTable.class.getName());
+
+    private static final byte[] MAGIC = "PLSR".getBytes(Charset.forName("US-ASCII"));
+
+    private static final int VERSION = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Number of transfers to buffer before writing a row group */
+    static final int ROW_GROUP_SIZE = 4096;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    public static final String[] RAW_TIME_COLUMNS = new String[] { "lengthOfTransfer", "timeOfDay" };
+
+    public static final String[] BUCKETED_TIME_COLUMNS = new String[] { "start", "n", "min", "pct25", "median", "pct75", "max" };
+
+    /** width of time-of-day buckets, seconds, or 0 if the table contains raw transfer times */
+    public int resolution;
+
+    public String[] routeIds;
+    public String[] stopIds;
+
+    /** number of transfers */
+    public int nRows;
+
+    /** indices into routeIds */
+    public int[] fromRoute, toRoute;
+
+    /** GTFS direction IDs */
+    public byte[] fromDirection, toDirection;
+
+    /** indices into stopIds */
+    public int[] fromStop, toStop;
+
+    /** meters, as the crow flies */
+    public float[] distance;
+
+    /** seconds, over the street network if walk times were available when exporting */
+    public int[] walkTime;
+
+    /** the values for transfer i are at indices timeOffset[i] until timeOffset[i + 1] of the time columns */
+    public int[] timeOffset;
+
+    /** the time columns, named by RAW_TIME_COLUMNS or BUCKETED_TIME_COLUMNS */
+    public int[][] timeColumns;
+
+    /**
+     * Usage: feed.zip out.pulsar [threshold_meters] [resolution_seconds] [walk_times.walk]
+     * A resolution of 0 (the default) exports raw transfer times. If no walk time table is given, feed.walk is used if it exists.
+     */
+    public static void main (String... args) throws Exception {
+        GTFSFeed feed = GTFSFeed.fromFile(args[0]);
+        LOG.info("feed loaded");
+
+        TransferExtractor t = new TransferExtractor(feed);
+
+        WalkTimeTable walkTimes = args.length > 4 ? WalkTimeTable.read(new File(args[4])) : WalkTimeTable.forFeed(new File(args[0]));
+        if (walkTimes != null) {
+            LOG.info("using street network walk times");
+            t.setWalkTimes(walkTimes);
+        }
+
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : TransferExtractor.DEFAULT_THRESHOLD;
+        int resolution = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+        write(t, threshold, resolution, new File(args[1]));
+
+        LOG.info("done");
+    }
+
+    /**
+     * Write the transfers from every route direction in the feed to a file.
+     * @param threshold maximum transfer distance, meters as the crow flies.
+     * @param resolution width of time-of-day buckets, seconds, or 0 to write raw transfer times.
+     */
+    public static void write (TransferExtractor t, double threshold, int resolution, File file) throws IOException {
+        write(t, threshold, resolution, file, ROW_GROUP_SIZE);
+    }
+
+    /** Write the transfers from every route direction in the feed to a file, in row groups of the given number of transfers */
+    static void write (TransferExtractor t, double threshold, int resolution, File file, int rowGroupSize) throws IOException {
+        if (resolution < 0)
+            throw new IllegalArgumentException("resolution must not be negative");
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        Output out = new Output(raf.getChannel());
+
+        try {
+            out.buf.put(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(resolution);
+
+            TObjectIntMap<String> routeIndices = writeDictionary(out, t.feed.routes.keySet().toArray(new String[0]));
+            TObjectIntMap<String> stopIndices = writeDictionary(out, t.feed.stops.keySet().toArray(new String[0]));
+
+            int nTimeColumns = resolution == 0 ? RAW_TIME_COLUMNS.length : BUCKETED_TIME_COLUMNS.length;
+            RowGroup group = new RowGroup(nTimeColumns);
+
+            int rdCount = 0;
+            for (RouteDirection rd : t.getRouteDirections()) {
+                if (++rdCount % 50 == 0)
+                    LOG.info("processed " + (rdCount - 1) + " route directions");
+
+                for (Transfer xfer : t.getTransfers(rd, threshold)) {
+                    int[][] times = t.transferLengthsAndTimesOfDay(xfer);
+
+                    if (times[0].length == 0)
+                        continue;
+
+                    group.fromRoute.add(routeIndices.get(xfer.fromRouteDirection.route.route_id));
+                    group.fromDirection.add((byte) xfer.fromRouteDirection.direction.toGtfs());
+                    group.toRoute.add(routeIndices.get(xfer.toRouteDirection.route.route_id));
+                    group.toDirection.add((byte) xfer.toRouteDirection.direction.toGtfs());
+                    group.fromStop.add(stopIndices.get(xfer.fromStop.stop_id));
+                    group.toStop.add(stopIndices.get(xfer.toStop.stop_id));
+                    group.distance.add((float) xfer.distance);
+                    group.walkTime.add(xfer.walkTime);
+
+                    if (resolution == 0) {
+                        group.count.add(times[0].length);
+                        group.timeColumns[0].add(times[0]);
+                        group.timeColumns[1].add(times[1]);
+                    }
+                    else {
+                        Bucket[] buckets = TimeOfDayPyramid.summarize(times[0], times[1], resolution, new int[times[0].length]);
+                        group.count.add(buckets.length);
+
+                        for (Bucket b : buckets) {
+                            group.timeColumns[0].add(b.start);
+                            group.timeColumns[1].add(b.n);
+                            group.timeColumns[2].add(b.min);
+                            group.timeColumns[3].add(b.pct25);
+                            group.timeColumns[4].add(b.median);
+                            group.timeColumns[5].add(b.pct75);
+                            group.timeColumns[6].add(b.max);
+                        }
+                    }
+
+                    if (group.count.size() >= rowGroupSize)
+                        group.flush(out);
+                }
+            }
+
+            group.flush(out);
+
+            // end of file
+            out.putInt(0);
+            out.flush();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** write a dictionary of strings, and return a map from string to index */
+    private static TObjectIntMap<String> writeDictionary (Output out, String[] values) throws IOException {
+        TObjectIntMap<String> indices = new TObjectIntHashMap<String>(values.length);
+
+        out.putInt(values.length);
+
+        for (int i = 0; i < values.length; i++) {
+            byte[] bytes = values[i].getBytes(UTF8);
+            out.putInt(bytes.length);
+            out.ensure(bytes.length);
+            out.buf.put(bytes);
+            indices.put(values[i], i);
+        }
+
+        return indices;
+    }
+
+    /** Read a transfer table written by write(...) */
+    public static TransferTable read (File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        Input in = new Input(raf.getChannel());
+
+        try {
+            TransferTable table = new TransferTable();
+
+            byte[] magic = new byte[MAGIC.length];
+            in.ensure(magic.length);
+            in.buf.get(magic);
+
+            for (int i = 0; i < magic.length; i++) {
+                if (magic[i] != MAGIC[i])
+                    throw new IOException(file + " is not a transfer table");
+            }
+
+            int version = in.getInt();
+            if (version != VERSION)
+                throw new IOException("unsupported transfer table version " + version);
+
+            table.resolution = in.getInt();
+            table.routeIds = readDictionary(in);
+            table.stopIds = readDictionary(in);
+
+            int nTimeColumns = table.resolution == 0 ? RAW_TIME_COLUMNS.length : BUCKETED_TIME_COLUMNS.length;
+            RowGroup group = new RowGroup(nTimeColumns);
+
+            int nRows;
+            while ((nRows = in.getInt()) > 0) {
+                group.read(in, nRows);
+            }
+
+            table.nRows = group.count.size();
+            table.fromRoute = group.fromRoute.toArray();
+            table.fromDirection = group.fromDirection.toArray();
+            table.toRoute = group.toRoute.toArray();
+            table.toDirection = group.toDirection.toArray();
+            table.fromStop = group.fromStop.toArray();
+            table.toStop = group.toStop.toArray();
+            table.distance = group.distance.toArray();
+            table.walkTime = group.walkTime.toArray();
+
+            table.timeOffset = new int[table.nRows + 1];
+            for (int i = 0; i < table.nRows; i++) {
+                table.timeOffset[i + 1] = table.timeOffset[i] + group.count.get(i);
+            }
+
+            table.timeColumns = new int[nTimeColumns][];
+            for (int c = 0; c < nTimeColumns; c++) {
+                table.timeColumns[c] = group.timeColumns[c].toArray();
+            }
+
+            return table;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String[] readDictionary (Input in) throws IOException {
+        String[] values = new String[in.getInt()];
+
+        for (int i = 0; i < values.length; i++) {
+            byte[] bytes = new byte[in.getInt()];
+            in.ensure(bytes.length);
+            in.buf.get(bytes);
+            values[i] = new String(bytes, UTF8);
+        }
+
+        return values;
+    }
+
+    /** Columns for a group of transfers, used to buffer them while writing and accumulate them while reading */
+    private static class RowGroup {
+        public TIntArrayList fromRoute = new TIntArrayList();
+        public TByteArrayList fromDirection = new TByteArrayList();
+        public TIntArrayList toRoute = new TIntArrayList();
+        public TByteArrayList toDirection = new TByteArrayList();
+        public TIntArrayList fromStop = new TIntArrayList();
+        public TIntArrayList toStop = new TIntArrayList();
+        public TFloatArrayList distance = new TFloatArrayList();
+        public TIntArrayList walkTime = new TIntArrayList();
+        public TIntArrayList count = new TIntArrayList();
+        public TIntArrayList[] timeColumns;
+
+        public RowGroup (int nTimeColumns) {
+            timeColumns = new TIntArrayList[nTimeColumns];
+            for (int c = 0; c < nTimeColumns; c++) {
+                timeColumns[c] = new TIntArrayList();
+            }
+        }
+
+        /** write this row group, column by column, and clear it */
+        public void flush (Output out) throws IOException {
+            int n = count.size();
+
+            if (n == 0)
+                return;
+
+            out.putInt(n);
+            out.putInts(fromRoute);
+            out.putBytes(fromDirection);
+            out.putInts(toRoute);
+            out.putBytes(toDirection);
+            out.putInts(fromStop);
+            out.putInts(toStop);
+
+            for (int i = 0; i < n; i++) {
+                out.ensure(4);
+                out.buf.putFloat(distance.get(i));
+            }
+
+            out.putInts(walkTime);
+            out.putInts(count);
+
+            for (TIntList column : timeColumns) {
+                out.putInts(column);
+            }
+
+            fromRoute.resetQuick();
+            fromDirection.resetQuick();
+            toRoute.resetQuick();
+            toDirection.resetQuick();
+            fromStop.resetQuick();
+            toStop.resetQuick();
+            distance.resetQuick();
+            walkTime.resetQuick();
+            count.resetQuick();
+
+            for (TIntArrayList column : timeColumns) {
+                column.resetQuick();
+            }
+        }
+
+        /** read a row group of n rows and append it to this one */
+        public void read (Input in, int n) throws IOException {
+            in.getInts(fromRoute, n);
+            in.getBytes(fromDirection, n);
+            in.getInts(toRoute, n);
+            in.getBytes(toDirection, n);
+            in.getInts(fromStop, n);
+            in.getInts(toStop, n);
+
+            for (int i = 0; i < n; i++) {
+                in.ensure(4);
+                distance.add(in.buf.getFloat());
+            }
+
+            in.getInts(walkTime, n);
+
+            int nTimes = 0;
+            for (int i = 0; i < n; i++) {
+                int c = in.getInt();
+                count.add(c);
+                nTimes += c;
+            }
+
+            for (TIntList column : timeColumns) {
+                in.getInts(column, nTimes);
+            }
+        }
+    }
+
+    /** A buffered channel for writing */
+    private static class Output {
+        public final FileChannel channel;
+        public final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        public Output (FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /** make sure there are at least n bytes free in the buffer */
+        public void ensure (int n) throws IOException {
+            if (buf.remaining() < n)
+                flush();
+        }
+
+        public void flush () throws IOException {
+            buf.flip();
+            while (buf.hasRemaining())
+                channel.write(buf);
+            buf.clear();
+        }
+
+        public void putInt (int i) throws IOException {
+            ensure(4);
+            buf.putInt(i);
+        }
+
+        public void putInts (TIntList list) throws IOException {
+            for (int i = 0; i < list.size(); i++) {
+                ensure(4);
+                buf.putInt(list.get(i));
+            }
+        }
+
+        public void putBytes (TByteList list) throws IOException {
+            for (int i = 0; i < list.size(); i++) {
+                ensure(1);
+                buf.put(list.get(i));
+            }
+        }
+    }
+
+    /** A buffered channel for reading */
+    private static class Input {
+        public final FileChannel channel;
+        public final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        public Input (FileChannel channel) {
+            this.channel = channel;
+            // start out empty
+            buf.flip();
+        }
+
+        /** make sure there are at least n bytes available in the buffer */
+        public void ensure (int n) throws IOException {
+            if (buf.remaining() >= n)
+                return;
+
+            buf.compact();
+
+            while (buf.position() < n) {
+                if (channel.read(buf) < 0)
+                    throw new EOFException("unexpected end of transfer table");
+            }
+
+            buf.flip();
+        }
+
+        public int getInt () throws IOException {
+            ensure(4);
+            return buf.getInt();
+        }
+
+        public void getInts (TIntList list, int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                ensure(4);
+                list.add(buf.getInt());
+            }
+        }
+
+        public void getBytes (TByteList list, int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                ensure(1);
+                list.add(buf.get());
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.conveyal.pulsar;
+
+import java.util.Arrays;
+
+/**
+ * A compact, mergeable summary of the distribution of transfer lengths for a single transfer. Transfer lengths are
+ * bounded (we throw away anything over the maximum transfer time) so a fixed-width histogram is small, and two
+ * sketches with the same bucket width can be merged exactly by adding counts. This lets distributions from different
+ * days, time windows or feed versions be combined without keeping the raw transfer times around.
+ *
+ * Min, max and count are exact; percentiles are accurate to within half a bucket.
+ */
+public class TransferTimeSketch {
+    private final int bucketWidth;
+
+    private final int[] counts;
+
+    private int n = 0;
+
+    private int min = Integer.MAX_VALUE;
+
+    private int max = Integer.MIN_VALUE;
+
+    /**
+     * Create a new sketch.
+     * @param bucketWidth width of each histogram bucket, seconds
+     * @param maxValue largest transfer length expected, seconds; larger values are counted in the last bucket
+     */
+    public TransferTimeSketch (int bucketWidth, int maxValue) {
+        if (bucketWidth <= 0)
+            throw new IllegalArgumentException("bucket width must be positive");
+
+        this.bucketWidth = bucketWidth;
+        this.counts = new int[maxValue / bucketWidth + 1];
+    }
+
+    /** Add a transfer length, in seconds, to this sketch */
+    public void add (int lengthOfTransfer) {
+        int bucket = Math.min(Math.max(lengthOfTransfer, 0) / bucketWidth, counts.length - 1);
+        counts[bucket]++;
+        n++;
+
+        if (lengthOfTransfer < min)
+            min = lengthOfTransfer;
+
+        if (lengthOfTransfer > max)
+            max = lengthOfTransfer;
+    }
+
+    /** Add all of the transfer lengths in another sketch to this one. The sketches must have the same buckets. */
+    public void merge (TransferTimeSketch other) {
+        if (other.bucketWidth != bucketWidth || other.counts.length != counts.length)
+            throw new IllegalArgumentException("cannot merge sketches with different buckets");
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+
+        n += other.n;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Get a given percentile, using the same interpolation between neighboring values as
+     * {@link Percentiles#percentile(int, int[])}, with each value estimated as the middle of its bucket.
+     */
+    public int percentile (int percent) {
+        if (n == 0)
+            return Integer.MAX_VALUE;
+
+        double offset = (((double) percent) / 100d) * ((double) n - 1);
+
+        int below = valueAtRank((int) Math.floor(offset));
+        int above = valueAtRank((int) Math.ceil(offset));
+
+        double aboveProportion = offset % 1;
+
+        return (int) Math.round(aboveProportion * above + (1 - aboveProportion) * below);
+    }
+
+    /** estimate the value of the rank-th smallest transfer length (zero-based) */
+    private int valueAtRank (int rank) {
+        // the extremes are known exactly
+        if (rank == 0)
+            return min;
+
+        if (rank == n - 1)
+            return max;
+
+        int cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative > rank) {
+                int mid = i * bucketWidth + bucketWidth / 2;
+                return Math.min(Math.max(mid, min), max);
+            }
+        }
+
+        // by construction
+        return max;
+    }
+
+    public int getBucketWidth () {
+        return bucketWidth;
+    }
+
+    public int[] getCounts () {
+        return Arrays.copyOf(counts, counts.length);
+    }
+
+    public int getN () {
+        return n;
+    }
+
+    public int getMin () {
+        return min;
+    }
+
+    public int getMax () {
+        return max;
+    }
+}
@@ -0,0 +1,266 @@
+package com.conveyal.pulsar;
+
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.logging.Logger;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Stop;
+import com.conveyal.pulsar.StreetNetwork.Snap;
+
+/**
+ * Precomputed street-network walk times between stops within the transfer radius of one another, so that transfers
+ * can use realistic walk times with a constant-time lookup rather than routing at query time.
+ *
+ * On disk: magic "PLSW", int version, double radius, int nStops, nStops stop IDs (modified UTF-8), int nPairs, then
+ * for each pair int fromStop, int toStop, unsigned short walk time in seconds (65535 if the stops are not connected
+ * within the search distance). All values are big-endian.
+ */
+public class WalkTimeTable {
+    private static final Logger LOG = Logger.getLogger(WalkTimeTable.class.getName());
+
+    /** returned when a pair of stops is not in the table, e.g. because a stop is too far from the street network */
+    public static final int NOT_IN_TABLE = -1;
+
+    /** returned when a pair of stops is not connected within the search distance */
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    /**
+     * walk speed on the street network, m/s. This is OTP's default. Pairs of stops not in the table fall back to the
+     * distance as the crow flies, lengthened by TransferExtractor.detourFactor, at this speed.
+     */
+    public static final double WALK_SPEED = 1.33;
+
+    /** how far to search on the street network, as a multiple of the radius */
+    private static final double MAX_DETOUR = 3;
+
+    /** stops further than this from any walkable street segment, in meters, are not in the table */
+    private static final double MAX_SNAP_DISTANCE = 150;
+
+    private static final int MAGIC = 0x504c5357; // PLSW
+
+    private static final int VERSION = 1;
+
+    /** on-disk value for unreachable pairs */
+    private static final int UNREACHABLE_ON_DISK = 0xFFFF;
+
+    /** the maximum crow-flies distance between stops in the table, meters */
+    public final double radius;
+
+    private final String[] stopIds;
+
+    private final TObjectIntMap<String> stopIndices;
+
+    /** walk times in seconds, keyed by from stop index in the high 32 bits and to stop index in the low 32 bits */
+    private final TLongIntMap walkTimes;
+
+    WalkTimeTable (double radius, String[] stopIds, int expectedPairs) {
+        this.radius = radius;
+        this.stopIds = stopIds;
+        this.stopIndices = new TObjectIntHashMap<String>(stopIds.length, 0.5f, -1);
+
+        for (int i = 0; i < stopIds.length; i++) {
+            stopIndices.put(stopIds[i], i);
+        }
+
+        this.walkTimes = new TLongIntHashMap(expectedPairs, 0.5f, Long.MIN_VALUE, NOT_IN_TABLE);
+    }
+
+    /**
+     * Usage: feed.zip extract.osm[.gz] out.walk [radius_meters]
+     */
+    public static void main (String... args) throws Exception {
+        GTFSFeed feed = GTFSFeed.fromFile(args[0]);
+        LOG.info("feed loaded");
+
+        TransferExtractor t = new TransferExtractor(feed);
+
+        StreetNetwork net = StreetNetwork.fromOsm(new File(args[1]));
+
+        double radius = args.length > 3 ? Double.parseDouble(args[3]) : TransferExtractor.DEFAULT_THRESHOLD;
+
+        WalkTimeTable table = build(t, net, radius);
+        table.write(new File(args[2]));
+
+        LOG.info("done");
+    }
+
+    /**
+     * Compute the walk times between all pairs of stops in a feed within radius meters of one another.
+     */
+    public static WalkTimeTable build (TransferExtractor t, StreetNetwork net, double radius) {
+        Stop[] stops = t.feed.stops.values().toArray(new Stop[t.feed.stops.size()]);
+        String[] stopIds = new String[stops.length];
+
+        // snap each stop to the street network
+        Snap[] snaps = new Snap[stops.length];
+
+        for (int i = 0; i < stops.length; i++) {
+            stopIds[i] = stops[i].stop_id;
+            snaps[i] = net.snap(stops[i].stop_lat, stops[i].stop_lon, MAX_SNAP_DISTANCE);
+        }
+
+        WalkTimeTable table = new WalkTimeTable(radius, stopIds, stops.length * 8);
+
+        for (int i = 0; i < stops.length; i++) {
+            if (i % 1000 == 0)
+                LOG.info("computed walk times from " + i + " stops");
+
+            if (snaps[i] == null)
+                continue;
+
+            Collection<Stop> nearby = t.stopsNear(stops[i].stop_lat, stops[i].stop_lon, radius);
+
+            // search to both ends of the segments the nearby stops are snapped to
+            TIntSet targets = new TIntHashSet();
+            for (Stop stop : nearby) {
+                Snap snap = snaps[table.stopIndices.get(stop.stop_id)];
+                if (snap != null) {
+                    targets.add(snap.a);
+                    targets.add(snap.b);
+                }
+            }
+
+            TIntDoubleMap networkDistances = new TIntDoubleHashMap();
+            net.distances(snaps[i], targets, radius * MAX_DETOUR, networkDistances);
+
+            for (Stop stop : nearby) {
+                int j = table.stopIndices.get(stop.stop_id);
+
+                if (i == j || snaps[j] == null)
+                    continue;
+
+                double distance = StreetNetwork.distance(snaps[i], snaps[j], networkDistances);
+
+                if (distance == Double.POSITIVE_INFINITY) {
+                    table.put(i, j, UNREACHABLE);
+                    continue;
+                }
+
+                distance += snaps[i].accessDistance + snaps[j].accessDistance;
+
+                table.put(i, j, (int) Math.round(distance / WALK_SPEED));
+            }
+        }
+
+        LOG.info("computed " + table.walkTimes.size() + " walk times");
+
+        return table;
+    }
+
+    /** set the walk time between the stops with the given indices, seconds */
+    void put (int from, int to, int walkTime) {
+        // keep everything representable on disk
+        if (walkTime != UNREACHABLE && walkTime >= UNREACHABLE_ON_DISK)
+            walkTime = UNREACHABLE;
+
+        walkTimes.put(key(from, to), walkTime);
+    }
+
+    private static long key (int from, int to) {
+        return ((long) from) << 32 | (to & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get the walk time between two stops, in seconds, UNREACHABLE if they are not connected within the search
+     * distance, or NOT_IN_TABLE if the table doesn't know.
+     */
+    public int getWalkTime (Stop from, Stop to) {
+        int fromIdx = stopIndices.get(from.stop_id);
+        int toIdx = stopIndices.get(to.stop_id);
+
+        if (fromIdx == -1 || toIdx == -1)
+            return NOT_IN_TABLE;
+
+        return walkTimes.get(key(fromIdx, toIdx));
+    }
+
+    /** Write this table to a file */
+    public void write (File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(radius);
+
+            out.writeInt(stopIds.length);
+            for (String stopId : stopIds) {
+                out.writeUTF(stopId);
+            }
+
+            out.writeInt(walkTimes.size());
+            for (long key : walkTimes.keys()) {
+                int walkTime = walkTimes.get(key);
+                out.writeInt((int) (key >>> 32));
+                out.writeInt((int) key);
+                out.writeChar(walkTime == UNREACHABLE ? UNREACHABLE_ON_DISK : walkTime);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read the walk time table stored alongside a GTFS feed (e.g. baseline.walk for baseline.zip), or return null if there is none.
+     */
+    public static WalkTimeTable forFeed (File feed) throws IOException {
+        File file = new File(feed.getAbsoluteFile().getParentFile(), feed.getName().replaceAll("\\.zip$", "") + ".walk");
+
+        if (!file.exists())
+            return null;
+
+        return read(file);
+    }
+
+    /** Read a table written by write(...) */
+    public static WalkTimeTable read (File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a walk time table");
+
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unsupported walk time table version " + version);
+
+            double radius = in.readDouble();
+
+            String[] stopIds = new String[in.readInt()];
+            for (int i = 0; i < stopIds.length; i++) {
+                stopIds[i] = in.readUTF();
+            }
+
+            int nPairs = in.readInt();
+            WalkTimeTable table = new WalkTimeTable(radius, stopIds, nPairs);
+
+            for (int i = 0; i < nPairs; i++) {
+                int from = in.readInt();
+                int to = in.readInt();
+                int walkTime = in.readChar();
+                table.walkTimes.put(key(from, to), walkTime == UNREACHABLE_ON_DISK ? UNREACHABLE : walkTime);
+            }
+
+            return table;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -1,20 +1,21 @@
 package controllers;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import com.conveyal.gtfs.model.Route;
-import com.conveyal.gtfs.model.Stop;
+import com.conveyal.pulsar.TimeOfDayPyramid;
 import com.conveyal.pulsar.TransferExtractor;
 import com.conveyal.pulsar.TransferExtractor.Direction;
 import com.conveyal.pulsar.TransferExtractor.RouteDirection;
 import com.conveyal.pulsar.TransferExtractor.Transfer;
-import com.conveyal.pulsar.TransferExtractor.TransferTime;
+import com.conveyal.pulsar.WalkTimeTable;
 
 import play.*;
+import play.cache.Cache;
 import play.libs.Json;
 import play.mvc.*;
 import views.html.*;
@@ -27,7 +28,16 @@ public class Application extends Controller {
         for (File file : new File(Play.application().configuration().getString("gtfs-directory")).listFiles()) {
             if (!file.isDirectory() && file.getName().endsWith(".zip")) {
                 String name = file.getName().replace(".zip", "");
-                transferExtractorPool.put(name, new TransferExtractor(file));
+                TransferExtractor t = new TransferExtractor(file);
+                
+                // use precomputed street network walk times if they are alongside the feed
+                try {
+                    t.setWalkTimes(WalkTimeTable.forFeed(file));
+                } catch (IOException e) {
+                    Logger.error("could not read walk times for " + name, e);
+                }
+                
+                transferExtractorPool.put(name, t);
             }
         }
     }
@@ -53,25 +63,42 @@ public class Application extends Controller {
        
         RouteDirection rd = new RouteDirection(r, Direction.fromGtfs(direction));
 
-        // 100 meter threshold for transfers
-        Transfer[] xfers = t.getTransfers(rd, 400);
+        return ok(Json.toJson(t.getTransfersWithTimes(rd, TransferExtractor.DEFAULT_THRESHOLD)));
+    }
+    
+    /**
+     * Get summaries of transfer times by time of day for a given direction, at a given resolution in minutes.
+     * The summaries for all resolutions are computed once per route direction and cached.
+     */
+    public static Result pyramid (String file, String route, int direction, int resolution) throws Exception {
+        if (!transferExtractorPool.containsKey(file))
+            return notFound("No such GTFS feed");
         
-        List<Transfer> ret = new ArrayList<Transfer>();
+        final TransferExtractor t = transferExtractorPool.get(file);
         
-        Stop[] fromStops = t.stopsForRouteDirection(rd);
-        String destName = fromStops[fromStops.length - 1].stop_name;
+        Route r = t.feed.routes.get(route);
         
-        for (Transfer xfer : xfers) {
-            xfer.transferTimes = t.transferTimes(xfer);
-            if (xfer.transferTimes.length > 0)
-                ret.add(xfer);
-            
-            Stop[] stops = t.stopsForRouteDirection(xfer.toRouteDirection);
-            xfer.toRouteDirection.destination = stops[stops.length - 1].stop_name;
-            xfer.fromRouteDirection.destination = destName;
-        }
+        if (r == null)
+            return notFound("no such route");
+        
+        if (direction != 0 && direction != 1)
+            return badRequest("direction must be 0 or 1");
+        
+        if (!TimeOfDayPyramid.hasResolution(resolution * 60))
+            return badRequest("resolution must be one of 60, 15 or 5 minutes");
+        
+        final RouteDirection rd = new RouteDirection(r, Direction.fromGtfs(direction));
+        
+        TimeOfDayPyramid pyramid = Cache.getOrElse("pyramid:" + file + ":" + route + ":" + direction, new Callable<TimeOfDayPyramid> () {
+            @Override
+            public TimeOfDayPyramid call() throws Exception {
+                Transfer[] xfers = t.getTransfers(rd, TransferExtractor.DEFAULT_THRESHOLD);
+                t.addDestinations(rd, xfers);
+                return new TimeOfDayPyramid(t, xfers);
+            }
+        }, 60 * 60);
         
-        return ok(Json.toJson(ret));
+        return ok(Json.toJson(pyramid.getLevel(resolution * 60)));
     }
     
     /** get all the routes for a given file */
@@ -4,6 +4,7 @@ window.Pulsar = function (file) {
   this.height = 800;
   this.width = 1200;
   this.range = [0, 24];
+  this.resolution = this.resolutionForRange(this.range);
 };
 
 window.Pulsar.prototype = {
@@ -13,15 +14,40 @@ window.Pulsar.prototype = {
     this.fetchData();
   },
 
+  /** fetch the transfer time summaries at the current resolution */
   fetchData: function () {
     var instance = this;
 
-    d3.json("transfers/" + this.file + "/" + this.route + "/" + this.direction, function (error, data) {
+    var url = "pyramid/" + this.file + "/" + this.route + "/" + this.direction + "/" + this.resolution;
+
+    d3.json(url, function (error, data) {
+      // ignore stale responses if the route, direction or resolution has changed in the meantime
+      if (url !== "pyramid/" + instance.file + "/" + instance.route + "/" + instance.direction + "/" + instance.resolution)
+        return;
+
       instance.data = data;
       instance.redraw();
     });
   },
 
+  /**
+   * get the summary resolution, in minutes, to use for a range of hours: coarser for wider ranges, but only a resolution
+   * that evenly divides both ends of the range, so that no bucket straddles an end and is left out of the plot
+   */
+  resolutionForRange: function (range) {
+    var hours = range[1] - range[0];
+
+    var resolutions = hours > 6 ? [60, 15, 5] : hours > 2 ? [15, 5] : [5];
+
+    for (var i = 0; i < resolutions.length; i++) {
+      if (Math.round(range[0] * 60) % resolutions[i] === 0 && Math.round(range[1] * 60) % resolutions[i] === 0)
+        return resolutions[i];
+    }
+
+    // the slider moves in 15 minute steps, so the ends of the range always fall on 5 minute buckets
+    return 5;
+  },
+
   toggleDirection: function () {
     this.direction = this.direction !== 0 ? 0 : 1;
     this.fetchData();
@@ -29,7 +55,16 @@ window.Pulsar.prototype = {
 
   setRange: function (range) {
     this.range = range;
-    this.redraw();
+
+    var resolution = this.resolutionForRange(range);
+
+    if (resolution !== this.resolution && this.route !== undefined) {
+      this.resolution = resolution;
+      this.fetchData();
+    } else {
+      this.resolution = resolution;
+      this.redraw();
+    }
   },
 
   formatTime: function (time) {
@@ -72,7 +107,7 @@ window.Pulsar.prototype = {
     }
 
     // set the title
-    d3.select("#title").text("Transfers from " + this.getname(this.data[0].fromRouteDirection));
+    d3.select("#title").text("Transfers from " + this.getname(this.data[0].transfer.fromRouteDirection));
 
     // draw the new plot
     // figure the spacing
@@ -107,11 +142,11 @@ window.Pulsar.prototype = {
     transfers
       .append('text')
       .text(function (d) {
-        return instance.getname(d.toRouteDirection);
+        return instance.getname(d.transfer.toRouteDirection);
       })
       .append('title')
       .text(function (d) {
-        return "at " + d.fromStop.stop_name;
+        return "at " + d.transfer.fromStop.stop_name;
       });
 
     var offset = -transfers[0][0].getBBox().height / 3;
@@ -125,33 +160,53 @@ window.Pulsar.prototype = {
       .attr('class', 'transfer-line');
 
     // hierarchical binding: see http://bost.ocks.org/mike/nest/
-    var transferMarkers = transfers.selectAll('circle')
+    // each bucket is drawn as a line from the 25th to the 75th percentile, with a marker at the median sized by the number of transfers
+    var buckets = transfers.selectAll('g.transfer-bucket')
       .data(function (d, i) {
-        // TODO: filter here
         var filtered = [];
 
-        d.transferTimes.forEach(function (tt) {
-          if (tt.timeOfDay >= instance.range[0] * 3600 && tt.timeOfDay <= instance.range[1] * 3600) {
-            filtered.push(tt);
+        d.buckets.forEach(function (b) {
+          if (b.start >= instance.range[0] * 3600 && b.start + d.resolution <= instance.range[1] * 3600) {
+            filtered.push(b);
           }
         });
 
         return filtered;
       });
 
-    transferMarkers.enter()
+    var bucketMarkers = buckets.enter()
+      .append('g')
+      .attr('class', 'transfer-bucket');
+
+    bucketMarkers
+      .append('line')
+      .attr('class', 'transfer-iqr')
+      .attr('x1', function (d) {
+        return xscale(d.pct25 / 60);
+      })
+      .attr('x2', function (d) {
+        return xscale(d.pct75 / 60);
+      })
+      .attr('y1', offset)
+      .attr('y2', offset);
+
+    bucketMarkers
       .append('circle')
       .attr('class', 'transfer-marker')
-      .attr('r', '3');
-
-    transferMarkers
+      .attr('r', function (d) {
+        return 2 + Math.sqrt(d.n);
+      })
       .attr('cy', offset)
       .attr('cx', function (d) {
-        return xscale(d.lengthOfTransfer / 60);
-      })
+        return xscale(d.median / 60);
+      });
+
+    bucketMarkers
       .append('title')
       .text(function (d) {
-        return Math.round(d.lengthOfTransfer / 60) + ' minute transfer at ' + instance.formatTime(d.timeOfDay / 3600);
+        return d.n + ' transfers starting ' + instance.formatTime(d.start / 3600) +
+          ': median ' + Math.round(d.median / 60) + ' minutes (' +
+          Math.round(d.min / 60) + ' to ' + Math.round(d.max / 60) + ')';
       });
 
       // set up the axis
@@ -0,0 +1,268 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.*;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.pulsar.SyntheticFeed;
+import com.conveyal.pulsar.TransferExtractor;
+import com.conveyal.pulsar.TransferExtractor.Direction;
+import com.conveyal.pulsar.TransferExtractor.RouteDirection;
+import com.google.common.collect.Multimap;
+
+import play.libs.Json;
+
+import static org.fest.assertions.Assertions.*;
+
+/**
+ * Measure the heap used by feeds and their indices, and the allocation of a transfers request, on synthetic grid feeds
+ * of increasing size (see SyntheticFeed.grid), and fail if they grow past the recorded baselines.
+ *
+ * To record new baselines (e.g. after a deliberate change), run the tests with -Dpulsar.recordBaselines=true, which
+ * writes the measurements to test/memory-baselines.properties rather than checking them. A measurement with no recorded
+ * baseline is a failure, so that the guard cannot be silently switched off.
+ */
+public class MemoryFootprintTest {
+    private static final File BASELINES = new File("test/memory-baselines.properties");
+
+    /** measurements may grow this much past the baseline before we fail */
+    private static final double TOLERANCE = 1.10;
+
+    /**
+     * The heap used by a loaded feed is measured from heap usage before and after loading it, which is noisier than
+     * the other measurements, so allow it more room.
+     */
+    private static final double FEED_TOLERANCE = 1.25;
+
+    /** number of routes in each synthetic feed */
+    private static final int[] FEED_SIZES = new int[] { 10, 40, 120 };
+
+    private static Map<String, Long> measurements = new TreeMap<String, Long>();
+
+    @Test
+    public void footprintWithinBaselines() throws Exception {
+        for (int size : FEED_SIZES) {
+            File gtfs = SyntheticFeed.grid(size).write();
+
+            // GTFSFeed is backed by MapDB, and walking its object graph would mostly measure MapDB's engine and cache,
+            // so measure the heap it takes instead. This relies on build.sbt running tests one at a time in their own JVM,
+            // so that nothing else allocates while the feed loads.
+            long heapBefore = settledHeapUsed();
+            GTFSFeed feed = GTFSFeed.fromFile(gtfs.getAbsolutePath());
+            long feedHeap = settledHeapUsed() - heapBefore;
+
+            TransferExtractor t = new TransferExtractor(feed);
+
+            // make sure the frequency-based route is measured
+            assertThat(((Multimap<?, ?>) getField(t, "frequenciesByTrip")).isEmpty()).isFalse();
+
+            String prefix = "routes" + size + ".";
+
+            measurements.put(prefix + "feed", feedHeap);
+
+            for (String index : new String[] { "stopsIndex", "tripIndex", "routesByStop", "frequenciesByTrip" }) {
+                measurements.put(prefix + index, deepSize(getField(t, index)));
+            }
+
+            measurements.put(prefix + "transfersRequest", allocatedByTransfersRequest(t));
+        }
+
+        if (Boolean.getBoolean("pulsar.recordBaselines")) {
+            recordBaselines();
+            return;
+        }
+
+        Properties baselines = loadBaselines();
+
+        for (Map.Entry<String, Long> e : measurements.entrySet()) {
+            String baseline = baselines.getProperty(e.getKey());
+
+            assertThat(baseline)
+                .as("baseline for " + e.getKey() + "; run with -Dpulsar.recordBaselines=true to record it")
+                .isNotNull();
+
+            double tolerance = e.getKey().endsWith(".feed") ? FEED_TOLERANCE : TOLERANCE;
+
+            assertThat(e.getValue().longValue())
+                .as(e.getKey() + " (bytes)")
+                .isLessThanOrEqualTo((long) (Long.parseLong(baseline) * tolerance));
+        }
+    }
+
+    /** Measure the bytes allocated on this thread by the work done for a /transfers request */
+    private static long allocatedByTransfersRequest(TransferExtractor t) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        RouteDirection rd = new RouteDirection(t.feed.routes.get("r0"), Direction.DIR_0);
+
+        // warm up, so that we don't measure class loading and the like
+        transfersRequest(t, rd);
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        transfersRequest(t, rd);
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    /** the work Application.transfers does, including serializing the response */
+    private static String transfersRequest(TransferExtractor t, RouteDirection rd) {
+        return Json.stringify(Json.toJson(t.getTransfersWithTimes(rd, TransferExtractor.DEFAULT_THRESHOLD)));
+    }
+
+    /** get the heap in use once garbage collection has settled, bytes */
+    private static long settledHeapUsed() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = memory.getHeapMemoryUsage().getUsed();
+
+        // collect until heap usage stops falling, as a single System.gc() is only a hint
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = memory.getHeapMemoryUsage().getUsed();
+
+            if (now >= used)
+                break;
+
+            used = now;
+        }
+
+        return used;
+    }
+
+    private static Object getField(Object o, String name) throws Exception {
+        Field f = o.getClass().getDeclaredField(name);
+        f.setAccessible(true);
+        return f.get(o);
+    }
+
+    /**
+     * Estimate the retained size of an object graph in bytes, assuming a 64-bit JVM with compressed references.
+     * GTFS entities are shared between the feed and the indices, so they are not counted.
+     */
+    private static long deepSize(Object root) {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        Deque<Object> queue = new ArrayDeque<Object>();
+
+        if (root != null)
+            queue.add(root);
+
+        long size = 0;
+
+        while (!queue.isEmpty()) {
+            Object o = queue.poll();
+
+            if (!seen.add(o))
+                continue;
+
+            Class<?> c = o.getClass();
+
+            // don't follow references into the runtime
+            if (o instanceof Class || o instanceof ClassLoader || o instanceof Thread || o instanceof ThreadGroup)
+                continue;
+
+            if (c.getName().startsWith("com.conveyal.gtfs.model."))
+                continue;
+
+            if (c.isArray()) {
+                int length = Array.getLength(o);
+                Class<?> component = c.getComponentType();
+                size += align(16 + (long) length * sizeOf(component));
+
+                if (!component.isPrimitive()) {
+                    for (int i = 0; i < length; i++) {
+                        Object element = Array.get(o, i);
+                        if (element != null)
+                            queue.add(element);
+                    }
+                }
+
+                continue;
+            }
+
+            long shallow = 12;
+            for (Class<?> k = c; k != null; k = k.getSuperclass()) {
+                for (Field f : k.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers()))
+                        continue;
+
+                    shallow += sizeOf(f.getType());
+
+                    if (f.getType().isPrimitive())
+                        continue;
+
+                    try {
+                        f.setAccessible(true);
+                        Object value = f.get(o);
+                        if (value != null)
+                            queue.add(value);
+                    } catch (Exception e) {
+                        // e.g. JDK internals on Java 9 and later; counting only the reference would silently undercount
+                        throw new IllegalStateException("cannot measure " + f + "; run the tests on Java 8", e);
+                    }
+                }
+            }
+
+            size += align(shallow);
+        }
+
+        return size;
+    }
+
+    private static int sizeOf(Class<?> type) {
+        if (type == long.class || type == double.class)
+            return 8;
+        if (type == int.class || type == float.class)
+            return 4;
+        if (type == short.class || type == char.class)
+            return 2;
+        if (type == byte.class || type == boolean.class)
+            return 1;
+        // compressed reference
+        return 4;
+    }
+
+    private static long align(long size) {
+        return (size + 7) / 8 * 8;
+    }
+
+    private static Properties loadBaselines() throws IOException {
+        Properties baselines = new Properties();
+
+        if (BASELINES.exists()) {
+            InputStream is = new FileInputStream(BASELINES);
+            baselines.load(is);
+            is.close();
+        }
+
+        return baselines;
+    }
+
+    private static void recordBaselines() throws IOException {
+        OutputStream os = new FileOutputStream(BASELINES);
+        PrintWriter out = new PrintWriter(os);
+
+        out.println("# Memory baselines for MemoryFootprintTest, in bytes. Regenerate with -Dpulsar.recordBaselines=true.");
+        for (Map.Entry<String, Long> e : measurements.entrySet()) {
+            out.println(e.getKey() + "=" + e.getValue());
+        }
+
+        out.close();
+    }
+}
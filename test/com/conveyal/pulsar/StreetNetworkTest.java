@@ -0,0 +1,115 @@
+package com.conveyal.pulsar;
+
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.junit.*;
+
+import com.conveyal.pulsar.StreetNetwork.Snap;
+
+import static org.fest.assertions.Assertions.*;
+import static org.fest.assertions.Delta.delta;
+
+public class StreetNetworkTest {
+    /** latitude of the south street; the north street is about 100m north of it */
+    static final double SOUTH = 39;
+    static final double NORTH = 39.0009;
+
+    /** the streets run from here east about 860m, with no nodes in between */
+    static final double WEST = -77;
+    static final double EAST = -76.99;
+
+    /** latitude of a short street about 170m south of the south street, which is not connected to anything */
+    static final double ISOLATED = 38.9985;
+
+    /**
+     * Two long parallel blocks, connected only at their west ends, like streets on either side of a river with a single
+     * bridge, and a short isolated street.
+     */
+    static File writeParallelStreets() throws IOException {
+        File osm = File.createTempFile("streets", ".osm");
+        osm.deleteOnExit();
+
+        PrintWriter out = new PrintWriter(new FileOutputStream(osm));
+        out.println("<?xml version='1.0' encoding='UTF-8'?>");
+        out.println("<osm version='0.6'>");
+        out.println("<node id='1' lat='" + SOUTH + "' lon='" + WEST + "'/>");
+        out.println("<node id='2' lat='" + SOUTH + "' lon='" + EAST + "'/>");
+        out.println("<node id='3' lat='" + NORTH + "' lon='" + WEST + "'/>");
+        out.println("<node id='4' lat='" + NORTH + "' lon='" + EAST + "'/>");
+        out.println("<node id='5' lat='" + ISOLATED + "' lon='" + WEST + "'/>");
+        out.println("<node id='6' lat='" + ISOLATED + "' lon='" + EAST + "'/>");
+        out.println("<way id='10'><nd ref='1'/><nd ref='2'/><tag k='highway' v='residential'/></way>");
+        out.println("<way id='11'><nd ref='3'/><nd ref='4'/><tag k='highway' v='residential'/></way>");
+        out.println("<way id='12'><nd ref='1'/><nd ref='3'/><tag k='highway' v='footway'/></way>");
+        // a motorway crossing in the middle, which pedestrians can't use
+        out.println("<way id='13'><nd ref='2'/><nd ref='4'/><tag k='highway' v='motorway'/></way>");
+        out.println("<way id='14'><nd ref='5'/><nd ref='6'/><tag k='highway' v='service'/></way>");
+        out.println("</osm>");
+        out.close();
+
+        return osm;
+    }
+
+    /** points in the middle of a long block snap to the nearest street, even though every node is far away */
+    @Test
+    public void snapsMidBlock() throws Exception {
+        StreetNetwork net = StreetNetwork.fromOsm(writeParallelStreets());
+
+        double midLon = (WEST + EAST) / 2;
+        double halfBlock = TransferExtractor.getDistance(SOUTH, WEST, SOUTH, midLon);
+
+        // a little closer to the south street than the north street
+        Snap snap = net.snap(SOUTH + 0.0004, midLon, 150);
+
+        assertThat(snap).isNotNull();
+        double toStreet = TransferExtractor.getDistance(SOUTH, midLon, SOUTH + 0.0004, midLon);
+        assertThat(snap.accessDistance).isEqualTo(toStreet, delta(1));
+        assertThat(snap.toA + snap.toB).isEqualTo(2 * halfBlock, delta(1));
+        assertThat(snap.toA).isEqualTo(halfBlock, delta(1));
+
+        // nothing within 150m
+        assertThat(net.snap(SOUTH - 0.01, midLon, 150)).isNull();
+    }
+
+    /** network distances start and end partway along segments, and go around barriers */
+    @Test
+    public void distancesAlongAndAroundSegments() throws Exception {
+        StreetNetwork net = StreetNetwork.fromOsm(writeParallelStreets());
+
+        double midLon = (WEST + EAST) / 2;
+        double halfBlock = TransferExtractor.getDistance(SOUTH, WEST, SOUTH, midLon);
+        double crossStreet = TransferExtractor.getDistance(SOUTH, WEST, NORTH, WEST);
+
+        Snap south = net.snap(SOUTH + 0.0001, midLon, 150);
+        Snap southEast = net.snap(SOUTH + 0.0001, (midLon + EAST) / 2, 150);
+        Snap north = net.snap(NORTH - 0.0001, midLon, 150);
+
+        TIntSet targets = new TIntHashSet();
+        targets.add(southEast.a);
+        targets.add(southEast.b);
+        targets.add(north.a);
+        targets.add(north.b);
+
+        TIntDoubleMap distances = new TIntDoubleHashMap();
+        net.distances(south, targets, 5000, distances);
+
+        // along the same block
+        assertThat(StreetNetwork.distance(south, southEast, distances)).isEqualTo(halfBlock / 2, delta(1));
+
+        // to the other street, back around by the footway, not across the motorway
+        assertThat(StreetNetwork.distance(south, north, distances)).isEqualTo(2 * halfBlock + crossStreet, delta(1));
+
+        // not within the search distance
+        distances.clear();
+        net.distances(south, targets, 500, distances);
+        assertThat(StreetNetwork.distance(south, north, distances)).isEqualTo(Double.POSITIVE_INFINITY);
+    }
+}
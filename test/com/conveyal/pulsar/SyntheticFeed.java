@@ -0,0 +1,173 @@
+package com.conveyal.pulsar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.conveyal.gtfs.GTFSFeed;
+
+/**
+ * A GTFS feed built up table by table in tests, with a single agency and a single service running every day of 2015.
+ */
+public class SyntheticFeed {
+    /** number of stops on each route of a grid feed */
+    public static final int STOPS_PER_ROUTE = 20;
+
+    /** about 300m, in degrees */
+    public static final double STOP_SPACING = 0.0027;
+
+    /** the headway of the frequency-based route in a grid feed, seconds */
+    public static final int GRID_FREQUENCY_HEADWAY = 10 * 60;
+
+    /** the lines of each table, header first */
+    private final Map<String, List<String>> tables = new LinkedHashMap<String, List<String>>();
+
+    public SyntheticFeed () {
+        add("agency.txt", "agency_id,agency_name,agency_url,agency_timezone");
+        add("agency.txt", "synthetic,Synthetic Transit,http://example.com,America/New_York");
+
+        add("calendar.txt", "service_id,monday,tuesday,wednesday,thursday,friday,saturday,sunday,start_date,end_date");
+        add("calendar.txt", "all,1,1,1,1,1,1,1,20150101,20151231");
+    }
+
+    /** Add a line to a table; the first line added to a table is its header */
+    public void add (String table, String line) {
+        if (!tables.containsKey(table))
+            tables.put(table, new ArrayList<String>());
+
+        tables.get(table).add(line);
+    }
+
+    /** Add a route of the synthetic agency */
+    public void addRoute (String routeId) {
+        if (!tables.containsKey("routes.txt"))
+            add("routes.txt", "route_id,agency_id,route_short_name,route_long_name,route_type");
+
+        add("routes.txt", routeId + ",synthetic," + routeId + ",Route " + routeId + ",3");
+    }
+
+    public void addStop (String stopId, double lat, double lon) {
+        if (!tables.containsKey("stops.txt"))
+            add("stops.txt", "stop_id,stop_name,stop_lat,stop_lon");
+
+        add("stops.txt", stopId + ",Stop " + stopId + "," + lat + "," + lon);
+    }
+
+    public void addTrip (String routeId, String tripId, int direction) {
+        if (!tables.containsKey("trips.txt"))
+            add("trips.txt", "route_id,service_id,trip_id,direction_id");
+
+        add("trips.txt", routeId + ",all," + tripId + "," + direction);
+    }
+
+    /** add a stop time, arriving and departing at the same time, seconds since midnight */
+    public void addStopTime (String tripId, int time, String stopId, int sequence) {
+        if (!tables.containsKey("stop_times.txt"))
+            add("stop_times.txt", "trip_id,arrival_time,departure_time,stop_id,stop_sequence");
+
+        add("stop_times.txt", tripId + "," + time(time) + "," + time(time) + "," + stopId + "," + sequence);
+    }
+
+    /** run a trip every headway seconds from start until before end, seconds since midnight */
+    public void addFrequency (String tripId, int start, int end, int headway) {
+        if (!tables.containsKey("frequencies.txt"))
+            add("frequencies.txt", "trip_id,start_time,end_time,headway_secs");
+
+        add("frequencies.txt", tripId + "," + time(start) + "," + time(end) + "," + headway);
+    }
+
+    /** Write this feed to a temporary file, which is deleted on exit */
+    public File write () throws IOException {
+        File file = File.createTempFile("synthetic", ".zip");
+        file.deleteOnExit();
+
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+        PrintWriter out = new PrintWriter(zip);
+
+        for (Map.Entry<String, List<String>> table : tables.entrySet()) {
+            zip.putNextEntry(new ZipEntry(table.getKey()));
+
+            for (String line : table.getValue()) {
+                out.println(line);
+            }
+
+            out.flush();
+            zip.closeEntry();
+        }
+
+        out.close();
+
+        return file;
+    }
+
+    /** Write this feed and load it */
+    public GTFSFeed load () throws IOException {
+        return GTFSFeed.fromFile(write().getAbsolutePath());
+    }
+
+    /**
+     * A grid of nRoutes routes, half running east-west and half north-south so that they cross one another, with
+     * service every 15 minutes in each direction from 6 am to 10 pm, plus a frequency-based route (f0) running
+     * north-south every GRID_FREQUENCY_HEADWAY seconds over the same span.
+     */
+    public static SyntheticFeed grid (int nRoutes) {
+        SyntheticFeed feed = new SyntheticFeed();
+
+        for (int r = 0; r < nRoutes; r++) {
+            String route = "r" + r;
+            feed.addRoute(route);
+
+            // offset routes that share a row or column slightly so that their stops are distinct but close
+            double offset = (r / 2 / STOPS_PER_ROUTE) * 0.0002;
+            int line = (r / 2) % STOPS_PER_ROUTE;
+
+            for (int s = 0; s < STOPS_PER_ROUTE; s++) {
+                if (r % 2 == 0)
+                    feed.addStop(route + "s" + s, 39 + line * STOP_SPACING + offset, -77 + s * STOP_SPACING);
+                else
+                    feed.addStop(route + "s" + s, 39 + s * STOP_SPACING, -77 + (line + 0.5) * STOP_SPACING + offset);
+            }
+
+            for (int start = 6 * 3600, i = 0; start < 22 * 3600; start += 15 * 60, i++) {
+                addTrips(feed, route, route + "t" + i, start);
+            }
+        }
+
+        // a frequency-based route alongside r1, offset so its stops are distinct from those of any other route
+        feed.addRoute("f0");
+
+        for (int s = 0; s < STOPS_PER_ROUTE; s++) {
+            feed.addStop("f0s" + s, 39 + s * STOP_SPACING, -77 + 0.5 * STOP_SPACING + 0.0001);
+        }
+
+        // the stop times of frequency-based trips are a template; the trips actually run at the times in frequencies.txt
+        addTrips(feed, "f0", "f0t0", 0);
+        feed.addFrequency("f0t0d0", 6 * 3600, 22 * 3600, GRID_FREQUENCY_HEADWAY);
+        feed.addFrequency("f0t0d1", 6 * 3600, 22 * 3600, GRID_FREQUENCY_HEADWAY);
+
+        return feed;
+    }
+
+    /** add a trip in each direction along all of a grid route's stops, 90 seconds apart */
+    private static void addTrips (SyntheticFeed feed, String route, String trip, int start) {
+        feed.addTrip(route, trip + "d0", 0);
+        feed.addTrip(route, trip + "d1", 1);
+
+        for (int s = 0; s < STOPS_PER_ROUTE; s++) {
+            feed.addStopTime(trip + "d0", start + s * 90, route + "s" + s, s);
+            feed.addStopTime(trip + "d1", start + s * 90, route + "s" + (STOPS_PER_ROUTE - 1 - s), s);
+        }
+    }
+
+    /** format seconds since midnight as a GTFS time */
+    public static String time (int time) {
+        return String.format("%02d:%02d:%02d", time / 3600, time / 60 % 60, time % 60);
+    }
+}
@@ -0,0 +1,129 @@
+package com.conveyal.pulsar;
+
+import org.junit.*;
+
+import com.conveyal.gtfs.model.Stop;
+import com.conveyal.pulsar.TransferExtractor.Direction;
+import com.conveyal.pulsar.TransferExtractor.RouteDirection;
+import com.conveyal.pulsar.TransferExtractor.Transfer;
+
+import static org.fest.assertions.Assertions.*;
+
+public class TransferExtractorTest {
+    /** time from the start of a trip on route f to its interior stop b, seconds */
+    private static final int OFFSET = 2 * 60;
+
+    private static TransferExtractor extractor;
+
+    /**
+     * Route f is frequency-based, running a-b-c every 10 minutes from 7 to 9 am and every 15 minutes from 4 to 5 pm.
+     * Route x crosses it next to b, with explicit trips every 20 minutes from 6:50 am to 5:30 pm.
+     */
+    @BeforeClass
+    public static void loadFeed() throws Exception {
+        SyntheticFeed feed = new SyntheticFeed();
+
+        feed.addRoute("f");
+        feed.addStop("a", 39, -77 - SyntheticFeed.STOP_SPACING);
+        feed.addStop("b", 39, -77);
+        feed.addStop("c", 39, -77 + SyntheticFeed.STOP_SPACING);
+
+        // the stop times of a frequency-based trip are a template, starting at midnight
+        feed.addTrip("f", "ft", 0);
+        feed.addStopTime("ft", 0, "a", 0);
+        feed.addStopTime("ft", OFFSET, "b", 1);
+        feed.addStopTime("ft", 2 * OFFSET, "c", 2);
+        feed.addFrequency("ft", 7 * 3600, 9 * 3600, 10 * 60);
+        feed.addFrequency("ft", 16 * 3600, 17 * 3600, 15 * 60);
+
+        feed.addRoute("x");
+        feed.addStop("x0", 39 - SyntheticFeed.STOP_SPACING, -77.0002);
+        feed.addStop("x1", 39, -77.0002);
+        feed.addStop("x2", 39 + SyntheticFeed.STOP_SPACING, -77.0002);
+
+        for (int start = 6 * 3600 + 50 * 60, i = 0; start < 17 * 3600 + 30 * 60; start += 20 * 60, i++) {
+            feed.addTrip("x", "xt" + i, 0);
+            feed.addStopTime("xt" + i, start, "x0", 0);
+            feed.addStopTime("xt" + i, start + 60, "x1", 1);
+            feed.addStopTime("xt" + i, start + 120, "x2", 2);
+        }
+
+        extractor = new TransferExtractor(feed.load());
+    }
+
+    /** a frequency-based trip arrives at an interior stop once per headway, offset by its template time to the stop */
+    @Test
+    public void frequencyTripArrivesOncePerHeadway() {
+        Transfer t = transfer("b", "f", "x1", "x");
+
+        int[] timesOfDay = extractor.transferLengthsAndTimesOfDay(t)[1];
+
+        // every arrival has a departure of route x within 20 minutes
+        int[] expected = new int[12 + 4];
+        int i = 0;
+
+        for (int time = 7 * 3600; time < 9 * 3600; time += 10 * 60) {
+            expected[i++] = time + OFFSET;
+        }
+
+        for (int time = 16 * 3600; time < 17 * 3600; time += 15 * 60) {
+            expected[i++] = time + OFFSET;
+        }
+
+        assertThat(timesOfDay).isEqualTo(expected);
+    }
+
+    /** transfers to a frequency-based trip wait for its next departure from the interior stop */
+    @Test
+    public void transferToFrequencyTripWaitsForNextDeparture() {
+        Transfer t = transfer("x1", "x", "b", "f");
+
+        int[][] lengthsAndTimes = extractor.transferLengthsAndTimesOfDay(t);
+        int[] lengths = lengthsAndTimes[0];
+        int[] timesOfDay = lengthsAndTimes[1];
+
+        int i = 0;
+
+        for (int arrival = 6 * 3600 + 50 * 60 + 60; arrival < 17 * 3600 + 30 * 60; arrival += 20 * 60) {
+            // the first departure from b at least two minutes and the walk after this arrival, if any
+            int earliest = arrival + 2 * 60 + t.walkTime;
+            int departure = Integer.MAX_VALUE;
+
+            for (int time = 7 * 3600 + OFFSET; time < 9 * 3600 + OFFSET; time += 10 * 60) {
+                if (time >= earliest)
+                    departure = Math.min(departure, time);
+            }
+
+            for (int time = 16 * 3600 + OFFSET; time < 17 * 3600 + OFFSET; time += 15 * 60) {
+                if (time >= earliest)
+                    departure = Math.min(departure, time);
+            }
+
+            // no transfers longer than 90 minutes
+            if (departure == Integer.MAX_VALUE || departure - arrival > 90 * 60)
+                continue;
+
+            assertThat(timesOfDay[i]).isEqualTo(arrival);
+            assertThat(lengths[i]).isEqualTo(departure - arrival);
+            i++;
+        }
+
+        assertThat(i).isGreaterThan(0);
+        assertThat(lengths.length).isEqualTo(i);
+    }
+
+    private static Transfer transfer(String fromStop, String fromRoute, String toStop, String toRoute) {
+        Stop from = extractor.feed.stops.get(fromStop);
+        Stop to = extractor.feed.stops.get(toStop);
+        return new Transfer(from, to, routeDirection(fromRoute), routeDirection(toRoute));
+    }
+
+    private static RouteDirection routeDirection(String routeId) {
+        for (RouteDirection rd : extractor.getRouteDirections()) {
+            if (rd.route.route_id.equals(routeId) && rd.direction == Direction.DIR_0)
+                return rd;
+        }
+
+        throw new IllegalArgumentException("no route direction for " + routeId);
+    }
+}
@@ -0,0 +1,107 @@
+package com.conveyal.pulsar;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.*;
+
+import com.conveyal.pulsar.TimeOfDayPyramid.Bucket;
+import com.conveyal.pulsar.TransferExtractor.RouteDirection;
+import com.conveyal.pulsar.TransferExtractor.Transfer;
+
+import static org.fest.assertions.Assertions.*;
+
+public class TransferTableTest {
+    private static TransferExtractor extractor;
+
+    @BeforeClass
+    public static void loadFeed() throws Exception {
+        extractor = new TransferExtractor(SyntheticFeed.grid(6).load());
+    }
+
+    @Test
+    public void rawTimesRoundTrip() throws Exception {
+        roundTrip(0, TransferTable.ROW_GROUP_SIZE);
+    }
+
+    @Test
+    public void bucketedTimesRoundTrip() throws Exception {
+        roundTrip(15 * 60, TransferTable.ROW_GROUP_SIZE);
+    }
+
+    /** small row groups, so that the table is written and read back in several, the last of them partly full */
+    @Test
+    public void severalRowGroupsRoundTrip() throws Exception {
+        assertThat(roundTrip(0, 7)).isGreaterThan(7);
+    }
+
+    /**
+     * Write the table, read it back, and check it against the transfers and times from the extractor.
+     * @return the number of transfers in the table
+     */
+    private static int roundTrip(int resolution, int rowGroupSize) throws Exception {
+        File file = File.createTempFile("transfers", ".pulsar");
+        file.deleteOnExit();
+
+        TransferTable.write(extractor, TransferExtractor.DEFAULT_THRESHOLD, resolution, file, rowGroupSize);
+        TransferTable table = TransferTable.read(file);
+
+        assertThat(table.resolution).isEqualTo(resolution);
+        assertThat(table.timeColumns.length)
+            .isEqualTo(resolution == 0 ? TransferTable.RAW_TIME_COLUMNS.length : TransferTable.BUCKETED_TIME_COLUMNS.length);
+
+        int row = 0;
+
+        for (RouteDirection rd : extractor.getRouteDirections()) {
+            for (Transfer xfer : extractor.getTransfers(rd, TransferExtractor.DEFAULT_THRESHOLD)) {
+                int[][] times = extractor.transferLengthsAndTimesOfDay(xfer);
+
+                // transfers that never occur are not written
+                if (times[0].length == 0)
+                    continue;
+
+                assertThat(table.routeIds[table.fromRoute[row]]).isEqualTo(xfer.fromRouteDirection.route.route_id);
+                assertThat(table.fromDirection[row]).isEqualTo((byte) xfer.fromRouteDirection.direction.toGtfs());
+                assertThat(table.routeIds[table.toRoute[row]]).isEqualTo(xfer.toRouteDirection.route.route_id);
+                assertThat(table.toDirection[row]).isEqualTo((byte) xfer.toRouteDirection.direction.toGtfs());
+                assertThat(table.stopIds[table.fromStop[row]]).isEqualTo(xfer.fromStop.stop_id);
+                assertThat(table.stopIds[table.toStop[row]]).isEqualTo(xfer.toStop.stop_id);
+                assertThat(table.distance[row]).isEqualTo((float) xfer.distance);
+                assertThat(table.walkTime[row]).isEqualTo(xfer.walkTime);
+
+                int[][] expected = resolution == 0 ? times : columns(TimeOfDayPyramid.summarize(times[0], times[1],
+                        resolution, new int[times[0].length]));
+
+                for (int c = 0; c < expected.length; c++) {
+                    int[] actual = Arrays.copyOfRange(table.timeColumns[c], table.timeOffset[row], table.timeOffset[row + 1]);
+                    assertThat(actual).isEqualTo(expected[c]);
+                }
+
+                row++;
+            }
+        }
+
+        assertThat(row).isGreaterThan(0);
+        assertThat(table.nRows).isEqualTo(row);
+        assertThat(table.timeOffset[row]).isEqualTo(table.timeColumns[0].length);
+
+        return row;
+    }
+
+    /** the buckets as columns, in the order of TransferTable.BUCKETED_TIME_COLUMNS */
+    private static int[][] columns(Bucket[] buckets) {
+        int[][] columns = new int[TransferTable.BUCKETED_TIME_COLUMNS.length][buckets.length];
+
+        for (int i = 0; i < buckets.length; i++) {
+            columns[0][i] = buckets[i].start;
+            columns[1][i] = buckets[i].n;
+            columns[2][i] = buckets[i].min;
+            columns[3][i] = buckets[i].pct25;
+            columns[4][i] = buckets[i].median;
+            columns[5][i] = buckets[i].pct75;
+            columns[6][i] = buckets[i].max;
+        }
+
+        return columns;
+    }
+}
@@ -0,0 +1,121 @@
+package com.conveyal.pulsar;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.*;
+
+import static org.fest.assertions.Assertions.*;
+
+public class TransferTimeSketchTest {
+    private static final int BUCKET_WIDTH = 60;
+
+    private static final int MAX_VALUE = 90 * 60;
+
+    /** Percentiles computed by selection match those computed by sorting */
+    @Test
+    public void percentilesMatchSorting() {
+        Random random = new Random(42);
+
+        for (int trial = 0; trial < 200; trial++) {
+            int[] values = randomLengths(random, 1 + random.nextInt(300));
+            int[] sorted = Arrays.copyOf(values, values.length);
+            Arrays.sort(sorted);
+
+            assertThat(Percentiles.min(values)).isEqualTo(sorted[0]);
+            assertThat(Percentiles.max(values)).isEqualTo(sorted[sorted.length - 1]);
+
+            for (int percent : new int[] { 0, 25, 50, 75, 100 }) {
+                int[] scratch = Arrays.copyOf(values, values.length);
+                assertThat(Percentiles.percentile(percent, scratch)).isEqualTo(sortedPercentile(percent, sorted));
+            }
+        }
+    }
+
+    /** Count, min and max are exact, and percentiles are within half a bucket (plus rounding) of the exact ones */
+    @Test
+    public void sketchPercentiles() {
+        Random random = new Random(42);
+
+        for (int trial = 0; trial < 200; trial++) {
+            int[] values = randomLengths(random, 1 + random.nextInt(300));
+
+            TransferTimeSketch sketch = sketch(values);
+
+            int[] sorted = Arrays.copyOf(values, values.length);
+            Arrays.sort(sorted);
+
+            assertThat(sketch.getN()).isEqualTo(values.length);
+            assertThat(sketch.getMin()).isEqualTo(sorted[0]);
+            assertThat(sketch.getMax()).isEqualTo(sorted[sorted.length - 1]);
+            assertThat(sketch.percentile(0)).isEqualTo(sorted[0]);
+            assertThat(sketch.percentile(100)).isEqualTo(sorted[sorted.length - 1]);
+
+            for (int percent : new int[] { 25, 50, 75 }) {
+                int error = Math.abs(sketch.percentile(percent) - sortedPercentile(percent, sorted));
+                assertThat(error).isLessThanOrEqualTo(BUCKET_WIDTH / 2 + 1);
+            }
+        }
+
+        assertThat(new TransferTimeSketch(BUCKET_WIDTH, MAX_VALUE).percentile(50)).isEqualTo(Integer.MAX_VALUE);
+    }
+
+    /** Merging sketches gives the same sketch as adding all of their values to one */
+    @Test
+    public void mergeMatchesCombinedSketch() {
+        Random random = new Random(42);
+
+        for (int trial = 0; trial < 50; trial++) {
+            int[] a = randomLengths(random, random.nextInt(200));
+            int[] b = randomLengths(random, 1 + random.nextInt(200));
+
+            int[] combined = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, combined, a.length, b.length);
+
+            TransferTimeSketch merged = sketch(a);
+            merged.merge(sketch(b));
+
+            TransferTimeSketch expected = sketch(combined);
+
+            assertThat(merged.getCounts()).isEqualTo(expected.getCounts());
+            assertThat(merged.getN()).isEqualTo(expected.getN());
+            assertThat(merged.getMin()).isEqualTo(expected.getMin());
+            assertThat(merged.getMax()).isEqualTo(expected.getMax());
+
+            for (int percent : new int[] { 0, 25, 50, 75, 100 }) {
+                assertThat(merged.percentile(percent)).isEqualTo(expected.percentile(percent));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeRejectsDifferentBuckets() {
+        new TransferTimeSketch(BUCKET_WIDTH, MAX_VALUE).merge(new TransferTimeSketch(BUCKET_WIDTH * 2, MAX_VALUE));
+    }
+
+    /** transfer lengths, clustered so that percentiles often fall between neighboring values */
+    private static int[] randomLengths(Random random, int n) {
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = 120 + random.nextInt(random.nextBoolean() ? 600 : MAX_VALUE - 120);
+        }
+        return values;
+    }
+
+    private static TransferTimeSketch sketch(int[] values) {
+        TransferTimeSketch sketch = new TransferTimeSketch(BUCKET_WIDTH, MAX_VALUE);
+        for (int v : values) {
+            sketch.add(v);
+        }
+        return sketch;
+    }
+
+    /** the percentile of a sorted array, interpolated as TransferExtractor has always done it */
+    private static int sortedPercentile(int percent, int[] sorted) {
+        double offset = (((double) percent) / 100d) * ((double) sorted.length - 1);
+        int below = sorted[(int) Math.floor(offset)];
+        int above = sorted[(int) Math.ceil(offset)];
+        double aboveProportion = offset % 1;
+        return (int) Math.round(aboveProportion * above + (1 - aboveProportion) * below);
+    }
+}
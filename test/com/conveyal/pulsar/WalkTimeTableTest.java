@@ -0,0 +1,121 @@
+package com.conveyal.pulsar;
+
+import java.io.File;
+
+import org.junit.*;
+
+import com.conveyal.gtfs.model.Stop;
+
+import static org.fest.assertions.Assertions.*;
+import static org.fest.assertions.Delta.delta;
+import static com.conveyal.pulsar.StreetNetworkTest.*;
+
+public class WalkTimeTableTest {
+    private static final double MID = (WEST + EAST) / 2;
+
+    private static TransferExtractor extractor;
+
+    private static WalkTimeTable table;
+
+    /**
+     * Build a walk time table for stops near the streets in StreetNetworkTest: a, b and c are next to the long streets,
+     * d is too far from any street to be snapped, and e is next to the isolated street.
+     */
+    @BeforeClass
+    public static void buildTable() throws Exception {
+        SyntheticFeed feed = new SyntheticFeed();
+        feed.addRoute("r");
+        feed.addStop("a", SOUTH + 0.0001, MID);
+        feed.addStop("b", SOUTH + 0.0001, (MID + EAST) / 2);
+        feed.addStop("c", NORTH - 0.0001, MID);
+        feed.addStop("d", NORTH + 0.0021, MID);
+        feed.addStop("e", ISOLATED + 0.0001, MID);
+
+        feed.addTrip("r", "t", 0);
+        String[] stops = new String[] { "a", "b", "c", "d", "e" };
+        for (int i = 0; i < stops.length; i++) {
+            feed.addStopTime("t", 8 * 3600 + i * 60, stops[i], i);
+        }
+
+        extractor = new TransferExtractor(feed.load());
+
+        StreetNetwork net = StreetNetwork.fromOsm(writeParallelStreets());
+        table = WalkTimeTable.build(extractor, net, TransferExtractor.DEFAULT_THRESHOLD);
+    }
+
+    /** Walk times over the street network, including the walks to and from the street at either end */
+    @Test
+    public void buildsWalkTimes() throws Exception {
+        TransferExtractor t = extractor;
+
+        Stop a = t.feed.stops.get("a");
+        Stop b = t.feed.stops.get("b");
+        Stop c = t.feed.stops.get("c");
+
+        double access = TransferExtractor.getDistance(SOUTH, MID, SOUTH + 0.0001, MID);
+
+        // along the south street
+        double ab = access + TransferExtractor.getDistance(SOUTH, MID, SOUTH, (MID + EAST) / 2) + access;
+        assertThat((double) table.getWalkTime(a, b)).isEqualTo(ab / WalkTimeTable.WALK_SPEED, delta(2));
+        assertThat(table.getWalkTime(b, a)).isEqualTo(table.getWalkTime(a, b));
+
+        // to the north street, around by the footway at the west end
+        double ac = access + 2 * TransferExtractor.getDistance(SOUTH, WEST, SOUTH, MID) +
+                TransferExtractor.getDistance(SOUTH, WEST, NORTH, WEST) + access;
+        assertThat((double) table.getWalkTime(a, c)).isEqualTo(ac / WalkTimeTable.WALK_SPEED, delta(2));
+
+        // too far from any street
+        assertThat(table.getWalkTime(a, t.feed.stops.get("d"))).isEqualTo(WalkTimeTable.NOT_IN_TABLE);
+        assertThat(table.getWalkTime(t.feed.stops.get("d"), a)).isEqualTo(WalkTimeTable.NOT_IN_TABLE);
+
+        // on a street that is not connected to the others
+        assertThat(table.getWalkTime(a, t.feed.stops.get("e"))).isEqualTo(WalkTimeTable.UNREACHABLE);
+    }
+
+    /** A table read back from disk gives the same walk time for every pair of stops */
+    @Test
+    public void roundTrip() throws Exception {
+        WalkTimeTable read = writeAndRead(table);
+
+        assertThat(read.radius).isEqualTo(table.radius);
+
+        for (Stop from : extractor.feed.stops.values()) {
+            for (Stop to : extractor.feed.stops.values()) {
+                assertThat(read.getWalkTime(from, to)).as(from.stop_id + " to " + to.stop_id)
+                    .isEqualTo(table.getWalkTime(from, to));
+            }
+        }
+    }
+
+    /** Walk times too long to store in an unsigned short are unreachable, in memory and on disk */
+    @Test
+    public void clampsLongWalkTimes() throws Exception {
+        WalkTimeTable small = new WalkTimeTable(400, new String[] { "x", "y", "z" }, 4);
+        small.put(0, 1, 65534);
+        small.put(0, 2, 65535);
+        small.put(1, 2, 100000);
+        small.put(2, 1, WalkTimeTable.UNREACHABLE);
+
+        for (WalkTimeTable t : new WalkTimeTable[] { small, writeAndRead(small) }) {
+            assertThat(t.getWalkTime(stop("x"), stop("y"))).isEqualTo(65534);
+            assertThat(t.getWalkTime(stop("x"), stop("z"))).isEqualTo(WalkTimeTable.UNREACHABLE);
+            assertThat(t.getWalkTime(stop("y"), stop("z"))).isEqualTo(WalkTimeTable.UNREACHABLE);
+            assertThat(t.getWalkTime(stop("z"), stop("y"))).isEqualTo(WalkTimeTable.UNREACHABLE);
+            assertThat(t.getWalkTime(stop("y"), stop("x"))).isEqualTo(WalkTimeTable.NOT_IN_TABLE);
+            assertThat(t.getWalkTime(stop("x"), stop("nowhere"))).isEqualTo(WalkTimeTable.NOT_IN_TABLE);
+        }
+    }
+
+    private static WalkTimeTable writeAndRead(WalkTimeTable table) throws Exception {
+        File file = File.createTempFile("walk", ".walk");
+        file.deleteOnExit();
+        table.write(file);
+        return WalkTimeTable.read(file);
+    }
+
+    private static Stop stop(String stopId) {
+        Stop stop = new Stop();
+        stop.stop_id = stopId;
+        return stop;
+    }
+}